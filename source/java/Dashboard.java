@@ -0,0 +1,154 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.AbstractQueuedExportService;
+import org.rsna.ctp.stdstages.DirectoryImportService;
+import org.rsna.ctp.stdstages.PosdaExportService;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The status of the storage and the export manifest, shared by all
+ * the clients polling the dashboard.
+ * <p>
+ * A background thread takes a snapshot of the status every second and
+ * the dashboard requests return the latest snapshot, so the cost of the
+ * status does not grow with the number of clients. The storage counts
+ * come from the storage indexes, which only list the directories that
+ * have changed since the last snapshot. The MoveStatus element counts the
+ * hand-offs to the anonymizer and export pipelines that are queued or
+ * still moving files.
+ */
+class Dashboard implements Runnable {
+
+	static final Logger logger = Logger.getLogger(Dashboard.class);
+
+	static final long interval = 1000;
+
+	final TCIAPlugin plugin;
+	final ScheduledExecutorService executor;
+	volatile String snapshot = null;
+
+	/**
+	 * Create the dashboard and start taking snapshots.
+	 * @param plugin the plugin whose status is displayed.
+	 */
+	Dashboard(TCIAPlugin plugin) {
+		this.plugin = plugin;
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(this, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the latest snapshot, taking one now if none has been taken yet.
+	 * @return the Dashboard XML string.
+	 */
+	String getSnapshot() {
+		String s = snapshot;
+		if (s == null) {
+			run();
+			s = snapshot;
+		}
+		return (s != null) ? s : "<Dashboard/>";
+	}
+
+	/**
+	 * Take a new snapshot in the background as soon as possible,
+	 * for example after the storage has been cleared.
+	 */
+	void update() {
+		try { executor.execute(this); }
+		catch (Exception stopped) { }
+	}
+
+	/**
+	 * Stop taking snapshots.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Take a snapshot.
+	 */
+	public synchronized void run() {
+		try {
+			long time = System.currentTimeMillis();
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("Dashboard");
+			doc.appendChild(root);
+			root.setAttribute("time", Long.toString(time));
+
+			Element impsts = doc.createElement("ImportStatus");
+			impsts.setAttribute("storedFiles", Integer.toString(getFileCount(plugin.getImportIndex())));
+			root.appendChild(impsts);
+
+			ExportManifestLogPlugin exportManifestLog = plugin.getExportManifestLog();
+			Element ansts;
+			if (exportManifestLog != null) {
+				ansts = (Element)doc.importNode(exportManifestLog.getManifestStatus().getDocumentElement(), true);
+				doc.renameNode(ansts, ansts.getNamespaceURI(), "AnonymizerStatus");
+			}
+			else ansts = doc.createElement("AnonymizerStatus");
+			ansts.setAttribute("storedFiles", Integer.toString(getFileCount(plugin.getAnonymizerIndex())));
+			root.appendChild(ansts);
+
+			Element mvsts = doc.createElement("MoveStatus");
+			mvsts.setAttribute("anonymize", Integer.toString(plugin.getActiveMoveJobCount(MoveJob.ANONYMIZE)));
+			mvsts.setAttribute("export", Integer.toString(plugin.getActiveMoveJobCount(MoveJob.EXPORT)));
+			root.appendChild(mvsts);
+
+			snapshot = XmlUtil.toPrettyString(root);
+		}
+		catch (Throwable ex) { logger.warn("Unable to update the dashboard", ex); }
+	}
+
+	private static int getFileCount(StorageIndex index) {
+		return (index != null) ? index.getFileCount() : 0;
+	}
+
+	/**
+	 * Determine whether the export pipeline has any work to do. This is
+	 * computed on each call from the export jobs that have not finished
+	 * moving their files, the queue counters, and a check for any file in
+	 * the export input directory, so it never lags an export.
+	 * @param plugin the plugin whose export pipeline is checked.
+	 * @return true if any object is being handed off, waiting, or being exported.
+	 */
+	static boolean isExportActive(TCIAPlugin plugin) {
+		if (plugin.getActiveMoveJobCount(MoveJob.EXPORT) > 0) return true;
+		DirectoryImportService dis = plugin.getExportInput();
+		AbstractQueuedExportService hes = plugin.getExportOutput();
+		int n = dis.getQueueManager().size()
+				+ (hes.hasCache() ? hes.getCacheManager().size() : 0)
+				+ hes.getQueueManager().size();
+		if (hes instanceof PosdaExportService) {
+			int[] lanes = ((PosdaExportService)hes).getLaneSizes();
+			n += ((PosdaExportService)hes).getActiveCount() + lanes[0] + lanes[1];
+		}
+		return (n > 0) || !isEmpty(dis.getImportDirectory());
+	}
+
+	//Check for any file in a directory tree without counting them all.
+	private static boolean isEmpty(File dir) {
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+			try {
+				for (Path path : stream) {
+					if (!Files.isDirectory(path) || !isEmpty(path.toFile())) return false;
+				}
+			}
+			finally { stream.close(); }
+		}
+		catch (Exception unreadable) { }
+		return true;
+	}
+}
@@ -0,0 +1,389 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * The few header elements of a DICOM object that the plugin needs for
+ * browsing, logging, and export.
+ * <p>
+ * The elements are read by a scanner that reads the beginning of the file
+ * into a reusable per-thread buffer and stops as soon as it passes the last
+ * element of interest, (0028,0010), well before the pixel data. Files in
+ * explicit or implicit VR little endian and explicit VR big endian are
+ * scanned directly; sequences of undefined length are skipped. The patient
+ * name and ID are decoded with the single-byte or UTF-8 character set named
+ * by (0008,0005) SpecificCharacterSet. Anything the scanner cannot handle
+ * (deflated transfer syntaxes, ISO 2022 code extensions, very long headers,
+ * malformed data) falls back to a full parse by DicomObject.
+ */
+public class DicomHeader {
+
+	static final Logger logger = Logger.getLogger(DicomHeader.class);
+
+	static final int initialBufferSize = 16 * 1024;
+	static final int cachedBufferSize = 256 * 1024;
+	static final int maxBufferSize = 4 * 1024 * 1024;
+	static final long lastTag = 0x00280010L;
+	static final String implicitLE = "1.2.840.10008.1.2";
+	static final String explicitBE = "1.2.840.10008.1.2.2";
+	static final String deflatedLE = "1.2.840.10008.1.2.1.99";
+	static final Charset defaultCharset = Charset.forName("ISO-8859-1");
+
+	static final int OK = 0;
+	static final int NOT_DICOM = 1;
+	static final int INCOMPLETE = 2;
+	static final int UNSUPPORTED = 3;
+
+	static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	final File file;
+	String transferSyntaxUID = "";
+	String sopClassUID = "";
+	String sopInstanceUID = "";
+	String studyDate = "";
+	String modality = "";
+	String patientName = "";
+	String patientID = "";
+	String studyInstanceUID = "";
+	String seriesInstanceUID = "";
+	String seriesNumber = "";
+	boolean image = false;
+
+	//Scanner state
+	byte[] buf;
+	int n;
+	boolean explicit;
+	boolean little;
+	Charset charset = defaultCharset;
+
+	/**
+	 * Read the header of a file.
+	 * @param file the file.
+	 * @return the header, or null if the file is not a DICOM object.
+	 */
+	public static DicomHeader getInstance(File file) {
+		DicomHeader header = new DicomHeader(file);
+		int result;
+		try { result = header.scan(); }
+		catch (Exception ex) { result = UNSUPPORTED; }
+		finally { header.buf = null; }
+		if (result == OK) return header;
+		if (result == NOT_DICOM) return null;
+
+		//Fall back to a full parse
+		logger.debug("Full parse required for "+file);
+		try { return new DicomHeader(new DicomObject(file)); }
+		catch (Exception notDICOM) { return null; }
+	}
+
+	/**
+	 * Determine whether a file is a DICOM object from its first bytes alone:
+	 * a part 10 preamble, or a data set that starts with a group 0002 or 0008 element.
+	 * @param file the file.
+	 * @return true if the file appears to be a DICOM object.
+	 */
+	public static boolean isDICOM(File file) {
+		DicomHeader header = new DicomHeader(file);
+		try {
+			header.buf = new byte[132];
+			header.n = read(file, header.buf, 132);
+			header.little = true;
+			if (header.n < 8) return false;
+			if ((header.n == 132) && (header.buf[128] == 'D') && (header.buf[129] == 'I')
+					&& (header.buf[130] == 'C') && (header.buf[131] == 'M')) return true;
+			int group = header.u16(0);
+			return (group == 0x0002) || (group == 0x0008);
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	DicomHeader(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Make a header from a parsed object.
+	 * @param dob the object.
+	 */
+	public DicomHeader(DicomObject dob) {
+		file = dob.getFile();
+		transferSyntaxUID = nonNull(dob.getTransferSyntaxUID());
+		sopClassUID = nonNull(dob.getSOPClassUID());
+		sopInstanceUID = nonNull(dob.getSOPInstanceUID());
+		studyDate = nonNull(dob.getStudyDate());
+		modality = nonNull(dob.getModality());
+		patientName = nonNull(dob.getPatientName());
+		patientID = nonNull(dob.getPatientID());
+		studyInstanceUID = nonNull(dob.getStudyInstanceUID());
+		seriesInstanceUID = nonNull(dob.getSeriesInstanceUID());
+		seriesNumber = nonNull(dob.getSeriesNumber());
+		image = dob.isImage();
+	}
+
+	public File getFile() { return file; }
+	public String getTransferSyntaxUID() { return transferSyntaxUID; }
+	public String getSOPClassUID() { return sopClassUID; }
+	public String getSOPInstanceUID() { return sopInstanceUID; }
+	public String getStudyDate() { return studyDate; }
+	public String getModality() { return modality; }
+	public String getPatientName() { return patientName; }
+	public String getPatientID() { return patientID; }
+	public String getStudyInstanceUID() { return studyInstanceUID; }
+	public String getSeriesInstanceUID() { return seriesInstanceUID; }
+	public String getSeriesNumber() { return seriesNumber; }
+	public boolean isImage() { return image; }
+
+	//Read as much of the file as the scan needs, growing the buffer
+	//until the scan passes the last element or the limit is reached.
+	private int scan() throws IOException {
+		long length = file.length();
+		int size = initialBufferSize;
+		while (true) {
+			buf = getBuffer(size);
+			n = read(file, buf, (int)Math.min(size, length));
+			boolean complete = (n >= length);
+			int result = parse(complete);
+			if (result != INCOMPLETE) return result;
+			if (complete || (size >= maxBufferSize)) return UNSUPPORTED;
+			size = Math.min(size * 4, maxBufferSize);
+		}
+	}
+
+	private static byte[] getBuffer(int size) {
+		byte[] b = buffers.get();
+		if ((b != null) && (b.length >= size)) return b;
+		b = new byte[size];
+		if (size <= cachedBufferSize) buffers.set(b);
+		return b;
+	}
+
+	private static int read(File file, byte[] b, int len) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			int off = 0;
+			int k;
+			while ((off < len) && ((k = fis.read(b, off, len - off)) != -1)) off += k;
+			return off;
+		}
+		finally { fis.close(); }
+	}
+
+	private int parse(boolean complete) {
+		int pos = 0;
+		explicit = true;
+		little = true;
+		if ((n >= 132) && (buf[128] == 'D') && (buf[129] == 'I') && (buf[130] == 'C') && (buf[131] == 'M')) {
+			//Part 10 file: the meta information is explicit VR little endian
+			pos = parseElements(132, 0x0002FFFFL, complete);
+			if (pos < 0) return -pos;
+			if (transferSyntaxUID.equals(implicitLE)) explicit = false;
+			else if (transferSyntaxUID.equals(explicitBE)) little = false;
+			else if (transferSyntaxUID.equals(deflatedLE)) return UNSUPPORTED;
+		}
+		else {
+			//Bare data set: accept it if it starts with a group 0002 or 0008
+			//element, and determine the VR encoding from the first element.
+			if (n < 8) return NOT_DICOM;
+			int group = u16(0);
+			if ((group != 0x0002) && (group != 0x0008)) return NOT_DICOM;
+			explicit = isVR(buf[4], buf[5]);
+			if (!explicit) transferSyntaxUID = implicitLE;
+		}
+		pos = parseElements(pos, lastTag, complete);
+		return (pos < 0) ? -pos : OK;
+	}
+
+	//Parse elements up to a tag, saving the ones of interest.
+	//Return the position of the first element after the tag,
+	//or the negative of the result code if the scan must stop.
+	private int parseElements(int pos, long endTag, boolean complete) {
+		while (true) {
+			if (pos == n) return complete ? pos : -INCOMPLETE;
+			if (pos + 8 > n) return complete ? -UNSUPPORTED : -INCOMPLETE;
+			long tag = ((long)u16(pos) << 16) | u16(pos + 2);
+			if (tag > endTag) return pos;
+			long vl;
+			if (explicit) {
+				if (!isVR(buf[pos+4], buf[pos+5])) return -UNSUPPORTED;
+				if (hasLongLength(buf[pos+4], buf[pos+5])) {
+					if (pos + 12 > n) return complete ? -UNSUPPORTED : -INCOMPLETE;
+					vl = u32(pos + 8);
+					pos += 12;
+				}
+				else {
+					vl = u16(pos + 6);
+					pos += 8;
+				}
+			}
+			else {
+				vl = u32(pos + 4);
+				pos += 8;
+			}
+			if (vl == 0xFFFFFFFFL) {
+				pos = skipSequence(pos);
+				if (pos < 0) return complete ? -UNSUPPORTED : -INCOMPLETE;
+				continue;
+			}
+			if (pos + vl > n) return complete ? -UNSUPPORTED : -INCOMPLETE;
+			save(tag, pos, (int)vl);
+			if (charset == null) return -UNSUPPORTED;
+			pos += (int)vl;
+		}
+	}
+
+	//Skip a sequence of undefined length. Return the position
+	//after the sequence delimitation item, or -1.
+	private int skipSequence(int pos) {
+		while (true) {
+			if (pos + 8 > n) return -1;
+			int group = u16(pos);
+			int elem = u16(pos + 2);
+			long vl = u32(pos + 4);
+			pos += 8;
+			if ((group == 0xFFFE) && (elem == 0xE0DD)) return pos;
+			if ((group != 0xFFFE) || (elem != 0xE000)) return -1;
+			if (vl == 0xFFFFFFFFL) {
+				pos = skipItem(pos);
+				if (pos < 0) return -1;
+			}
+			else if (pos + vl > n) return -1;
+			else pos += (int)vl;
+		}
+	}
+
+	//Skip the elements of an item of undefined length. Return
+	//the position after the item delimitation item, or -1.
+	private int skipItem(int pos) {
+		while (true) {
+			if (pos + 8 > n) return -1;
+			if ((u16(pos) == 0xFFFE) && (u16(pos + 2) == 0xE00D)) return pos + 8;
+			long vl;
+			if (explicit) {
+				if (!isVR(buf[pos+4], buf[pos+5])) return -1;
+				if (hasLongLength(buf[pos+4], buf[pos+5])) {
+					if (pos + 12 > n) return -1;
+					vl = u32(pos + 8);
+					pos += 12;
+				}
+				else {
+					vl = u16(pos + 6);
+					pos += 8;
+				}
+			}
+			else {
+				vl = u32(pos + 4);
+				pos += 8;
+			}
+			if (vl == 0xFFFFFFFFL) {
+				pos = skipSequence(pos);
+				if (pos < 0) return -1;
+			}
+			else if (pos + vl > n) return -1;
+			else pos += (int)vl;
+		}
+	}
+
+	private void save(long tag, int pos, int len) {
+		switch ((int)tag) {
+			case 0x00020010: transferSyntaxUID = getString(pos, len); break;
+			case 0x00080005: charset = getCharset(getString(pos, len)); break;
+			case 0x00080016: sopClassUID = getString(pos, len); break;
+			case 0x00080018: sopInstanceUID = getString(pos, len); break;
+			case 0x00080020: studyDate = getString(pos, len); break;
+			case 0x00080060: modality = getString(pos, len); break;
+			case 0x00100010: patientName = getText(pos, len); break;
+			case 0x00100020: patientID = getText(pos, len); break;
+			case 0x0020000D: studyInstanceUID = getString(pos, len); break;
+			case 0x0020000E: seriesInstanceUID = getString(pos, len); break;
+			case 0x00200011: seriesNumber = getString(pos, len); break;
+			case 0x00280010: image = true; break;
+		}
+	}
+
+	//Get a string value, without padding (trailing spaces or nulls).
+	private String getString(int pos, int len) {
+		char[] chars = new char[len];
+		for (int i=0; i<len; i++) chars[i] = (char)(buf[pos + i] & 0xff);
+		return new String(chars).trim();
+	}
+
+	//Get a string value that may contain characters outside
+	//the default repertoire, decoded with the character set.
+	private String getText(int pos, int len) {
+		return new String(buf, pos, len, charset).trim();
+	}
+
+	//Get the character set for a value of SpecificCharacterSet,
+	//or null if it uses code extensions or is not known.
+	static Charset getCharset(String specificCharacterSet) {
+		String name;
+		switch (specificCharacterSet) {
+			case "":
+			case "ISO_IR 6":
+			case "ISO_IR 100": return defaultCharset;
+			case "ISO_IR 101": name = "ISO-8859-2"; break;
+			case "ISO_IR 109": name = "ISO-8859-3"; break;
+			case "ISO_IR 110": name = "ISO-8859-4"; break;
+			case "ISO_IR 144": name = "ISO-8859-5"; break;
+			case "ISO_IR 127": name = "ISO-8859-6"; break;
+			case "ISO_IR 126": name = "ISO-8859-7"; break;
+			case "ISO_IR 138": name = "ISO-8859-8"; break;
+			case "ISO_IR 148": name = "ISO-8859-9"; break;
+			case "ISO_IR 203": name = "ISO-8859-15"; break;
+			case "ISO_IR 166": name = "TIS-620"; break;
+			case "ISO_IR 13": name = "JIS_X0201"; break;
+			case "ISO_IR 192": name = "UTF-8"; break;
+			case "GB18030": name = "GB18030"; break;
+			case "GBK": name = "GBK"; break;
+			default: return null;
+		}
+		try { return Charset.forName(name); }
+		catch (Exception unsupported) { return null; }
+	}
+
+	private int u16(int pos) {
+		int b0 = buf[pos] & 0xff;
+		int b1 = buf[pos + 1] & 0xff;
+		return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private long u32(int pos) {
+		long lo = u16(pos);
+		long hi = u16(pos + 2);
+		return little ? (hi << 16) | lo : (lo << 16) | hi;
+	}
+
+	private static boolean isVR(byte b0, byte b1) {
+		return (b0 >= 'A') && (b0 <= 'Z') && (b1 >= 'A') && (b1 <= 'Z');
+	}
+
+	//Determine whether an explicit VR has a reserved field and a 32-bit length.
+	private static boolean hasLongLength(byte b0, byte b1) {
+		switch ((b0 << 8) | b1) {
+			case ('O' << 8) | 'B':
+			case ('O' << 8) | 'D':
+			case ('O' << 8) | 'F':
+			case ('O' << 8) | 'L':
+			case ('O' << 8) | 'V':
+			case ('O' << 8) | 'W':
+			case ('S' << 8) | 'Q':
+			case ('S' << 8) | 'V':
+			case ('U' << 8) | 'C':
+			case ('U' << 8) | 'N':
+			case ('U' << 8) | 'R':
+			case ('U' << 8) | 'T':
+			case ('U' << 8) | 'V':
+				return true;
+		}
+		return false;
+	}
+
+	private static String nonNull(String s) {
+		return (s != null) ? s.trim() : "";
+	}
+}
@@ -3,8 +3,11 @@ package edu.uams.tcia;
 import java.io.File;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import jdbm.RecordManager;
 import jdbm.helper.FastIterator;
@@ -175,7 +178,7 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 	 */
 	public synchronized String getStatusHTML() {
 		String seriesLine = "<tr><td width=\"20%\">Number of series</td><td>"+manifest.size()+"</td></tr>";
-		String instanceLine = "<tr><td width=\"20%\">Number of instances</td><td>"+getManifestInstanceCount()+"</td></tr>";
+		String instanceLine = "<tr><td width=\"20%\">Number of instances</td><td>"+manifestInstanceCount+"</td></tr>";
 		return getStatusHTML(seriesLine + instanceLine);
 	}
 
@@ -199,8 +202,36 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 	 * called immediately after anonymization.
 	 */
 	public synchronized void logExportedObject(DicomObject dob) { 
-		String sopiuid = dob.getSOPInstanceUID();
-		String seriesuid = dob.getSeriesInstanceUID();
+		logExportedObject(dob.getSOPInstanceUID(), dob.getSeriesInstanceUID());
+	}
+	
+	/**
+	 * Log an exported object in the persistent index, given its UIDs.
+	 * This allows the caller to log an object without parsing it completely.
+	 */
+	public synchronized void logExportedObject(String sopiuid, String seriesuid) { 
+		logExportedSeries(seriesuid, 1, sopiuid);
+	}
+	
+	/**
+	 * Log a batch of exported objects in the persistent index, given
+	 * their SeriesInstanceUIDs. The index is updated once per series.
+	 * @param seriesuids the SeriesInstanceUID of each object in the batch.
+	 */
+	public synchronized void logExportedObjects(List<String> seriesuids) {
+		Map<String,Integer> counts = new HashMap<String,Integer>();
+		for (String seriesuid : seriesuids) {
+			Integer n = counts.get(seriesuid);
+			counts.put(seriesuid, (n == null) ? 1 : n + 1);
+		}
+		for (String seriesuid : counts.keySet()) {
+			int n = counts.get(seriesuid);
+			logExportedSeries(seriesuid, n, n+" objects");
+		}
+	}
+	
+	//Add a number of exported objects to the entry of a series in the persistent index.
+	private void logExportedSeries(String seriesuid, int count, String objects) {
 		try {
 			//Get the entry from the persistent index, if possible
 			ExportManifestEntry entry = (ExportManifestEntry)seriesIndex.get(seriesuid);
@@ -223,7 +254,7 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 					//Since we don't have the PHI version of the original
 					//object, we can't make a complete entry, so we're
 					//just going to log the problem.
-					logger.warn("Unable to log "+sopiuid+" in the persistent index.");
+					logger.warn("Unable to log "+objects+" in the persistent index.");
 					logger.warn("...SeriesInstanceUID: "+seriesuid);
 					logger.warn("...manifest.size:     "+manifest.size());
 					for (String s :  manifest.keySet()) {
@@ -234,14 +265,14 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 			}
 			//We now have an entry to put into the persistent index.
 			//Update the count and the last export date.
-			entry.numFiles++;
+			entry.numFiles += count;
 			entry.lastExport = System.currentTimeMillis();
 			//Now store it in the persistent index
 			seriesIndex.put(seriesuid, entry);
 			return;
 		}
 		catch (Exception unable) { 
-			logger.warn("Unable to log "+sopiuid+" in the persistent index.",unable);
+			logger.warn("Unable to log "+objects+" in the persistent index.",unable);
 		}
 	}
 	
@@ -250,6 +281,7 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 	 */
 	public synchronized void clear() {
 		manifest.clear();
+		manifestInstanceCount = 0;
 	}
 	
 	/**
@@ -297,7 +329,16 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 	}
 	
 	/**
-	 * Get the manifest status object.
+	 * Count a batch of queued instances.
+	 * @param n the number of instances.
+	 */
+	public synchronized void incrementQueuedInstances(int n) {
+		queuedInstanceCount += n;
+	}
+	
+	/**
+	 * Get the manifest status object. The instance count is kept
+	 * as objects are logged; the quarantines are counted on each call.
 	 */
 	public synchronized Document getManifestStatus() throws Exception {
 		Document doc = XmlUtil.getDocument();
@@ -305,7 +346,7 @@ public class ExportManifestLogPlugin extends AbstractPlugin {
 		doc.appendChild(root);
 		root.setAttribute("startingQuarantineCount", Integer.toString(startingQuarantineCount));
 		root.setAttribute("currentQuarantineCount", Integer.toString(getAnonymizerPipelineQuarantineCount()));
-		root.setAttribute("currentManifestInstanceCount", Integer.toString(getManifestInstanceCount()));
+		root.setAttribute("currentManifestInstanceCount", Integer.toString(manifestInstanceCount));
 		root.setAttribute("queuedInstanceCount", Integer.toString(queuedInstanceCount));
 		return doc;		
 	}
@@ -0,0 +1,191 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of the classification (DICOM or not) of the files seen
+ * by the directory browser. Import jobs consult it with peek, which
+ * never reads a file or adds an entry.
+ * <p>
+ * Each entry is keyed by the path of a file and is valid as long as
+ * the size and modification time of the file are unchanged. Files are
+ * classified by a sniff of their first bytes (DicomHeader.isDICOM).
+ * The files of the directory being listed are classified in parallel,
+ * and its subdirectories are then classified in the background so
+ * that the next navigation finds them in the cache.
+ */
+class FileClassifier {
+
+	static final Logger logger = Logger.getLogger(FileClassifier.class);
+
+	static final int maxPendingDirectories = 64;
+	static final int maxPrefetchDirectories = 32;
+
+	final int maxEntries;
+	final Map<String,Entry> cache;
+	final LinkedHashSet<File> pending = new LinkedHashSet<File>();
+	final ExecutorService foreground;
+	final ExecutorService background;
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * Create a classifier.
+	 * @param maxEntries the maximum number of files in the cache.
+	 * @param threads the number of threads classifying the directory being listed.
+	 */
+	FileClassifier(final int maxEntries, int threads) {
+		this.maxEntries = maxEntries;
+		cache = new LinkedHashMap<String,Entry>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		foreground = Executors.newFixedThreadPool(Math.max(1, threads));
+		background = Executors.newSingleThreadExecutor();
+	}
+
+	/**
+	 * Determine whether a file is a DICOM object, using the cache if possible.
+	 * @param file the file.
+	 * @return true if the file is a DICOM object.
+	 */
+	boolean isDICOM(File file) {
+		BasicFileAttributes attrs;
+		try { attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class); }
+		catch (Exception ex) { return false; }
+		if (!attrs.isRegularFile()) return false;
+		long size = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		String key = file.getAbsolutePath();
+		synchronized (this) {
+			Entry entry = cache.get(key);
+			if ((entry != null) && (entry.size == size) && (entry.lastModified == lastModified)) {
+				hits++;
+				return entry.dicom;
+			}
+			misses++;
+		}
+		boolean dicom = DicomHeader.isDICOM(file);
+		synchronized (this) {
+			cache.put(key, new Entry(size, lastModified, dicom));
+		}
+		return dicom;
+	}
+
+	/**
+	 * Get the cached classification of a file, without reading the file
+	 * or adding it to the cache if it is not there.
+	 * @param file the file.
+	 * @return the classification, or null if the file is not in the cache
+	 * or has changed since it was classified.
+	 */
+	Boolean peek(File file) {
+		BasicFileAttributes attrs;
+		try { attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class); }
+		catch (Exception ex) { return null; }
+		if (!attrs.isRegularFile()) return Boolean.FALSE;
+		synchronized (this) {
+			Entry entry = cache.get(file.getAbsolutePath());
+			if ((entry == null) || (entry.size != attrs.size())
+					|| (entry.lastModified != attrs.lastModifiedTime().toMillis())) return null;
+			hits++;
+			return entry.dicom;
+		}
+	}
+
+	/**
+	 * Classify a set of files in parallel.
+	 * @param files the files.
+	 * @return the classification of each file, in the order of the array.
+	 */
+	boolean[] classify(File[] files) {
+		final boolean[] results = new boolean[files.length];
+		List<Callable<Object>> tasks = new LinkedList<Callable<Object>>();
+		for (int i=0; i<files.length; i++) {
+			final int k = i;
+			final File file = files[i];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					results[k] = isDICOM(file);
+					return null;
+				}
+			});
+		}
+		try { foreground.invokeAll(tasks); }
+		catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+		return results;
+	}
+
+	/**
+	 * Classify the files in the subdirectories of a directory in the background.
+	 * @param subdirs the subdirectories.
+	 */
+	void prefetch(File[] subdirs) {
+		int n = 0;
+		for (File dir : subdirs) {
+			if (n++ >= maxPrefetchDirectories) break;
+			prefetch(dir);
+		}
+	}
+
+	/**
+	 * Classify the files in a directory in the background.
+	 * Directories already waiting are not queued again.
+	 * @param dir the directory.
+	 */
+	synchronized void prefetch(final File dir) {
+		if ((pending.size() >= maxPendingDirectories) || !pending.add(dir)) return;
+		background.execute(new Runnable() {
+			public void run() {
+				synchronized (FileClassifier.this) { pending.remove(dir); }
+				File[] files = dir.listFiles();
+				if (files == null) return;
+				for (File file : files) {
+					if (Thread.currentThread().isInterrupted()) return;
+					if (file.isFile()) isDICOM(file);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the threads.
+	 */
+	void shutdown() {
+		foreground.shutdownNow();
+		background.shutdownNow();
+	}
+
+	/**
+	 * Get an XML element string describing the cache.
+	 * @return the XML string.
+	 */
+	synchronized String toXML() {
+		return "<classifier entries=\""+cache.size()+"\" maxEntries=\""+maxEntries+"\""
+					+ " hits=\""+hits+"\" misses=\""+misses+"\""
+					+ " pendingDirectories=\""+pending.size()+"\"/>";
+	}
+
+	static class Entry {
+		final long size;
+		final long lastModified;
+		final boolean dicom;
+		Entry(long size, long lastModified, boolean dicom) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.dicom = dicom;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * The engine that submits the DICOM files in a set of files and
+ * directories to the queue of the import pipeline.
+ * <p>
+ * The work is done in two bounded stages. In the parse stage, the
+ * directories are walked in parallel by a work-stealing pool: each directory
+ * is a task that forks a task for each of its subdirectories and one for
+ * each batch of its files, and a file task checks each file with a
+ * header-only scan. The DICOM objects are handed to the copy stage, a fixed
+ * pool of threads with a bounded queue, which copies them to the import
+ * directory and enqueues them. When the copy queue is full, the parse thread
+ * makes the copy itself, so the walk never runs far ahead of the copies. The
+ * engine stops taking new work when its job is cancelled.
+ */
+class ImportEngine {
+
+	static final Logger logger = Logger.getLogger(ImportEngine.class);
+
+	static final int filesPerTask = 32;
+
+	final ImportJob job;
+	ExecutorService copyPool;
+	int pendingCopies = 0;
+
+	/**
+	 * Create an engine for one job.
+	 * @param job the job, which supplies the files and the destination
+	 * and receives the progress.
+	 */
+	ImportEngine(ImportJob job) {
+		this.job = job;
+	}
+
+	/**
+	 * Submit the files of the job, returning when all of them
+	 * have been processed or the job has been cancelled.
+	 * @param pool the pool in which to walk the directories and parse the files.
+	 * @param copyPool the pool in which to copy and enqueue the DICOM objects.
+	 */
+	void submit(ForkJoinPool pool, ExecutorService copyPool) {
+		long startTime = System.currentTimeMillis();
+		this.copyPool = copyPool;
+		pool.invoke(new DirectoryTask(job.files));
+		awaitCopies();
+		logger.debug("Import job "+job.id+": "+job.scannedFiles.get()+" files examined in "
+						+(System.currentTimeMillis() - startTime)+" ms");
+	}
+
+	//Check one file and hand it to the copy stage if it is a DICOM object.
+	private void submitFile(final File file) {
+		//Files the browser has already seen as non-DICOM are not read again.
+		//Other files are read once, by the header scan; they are not added
+		//to the browser's cache.
+		Boolean cached = (job.classifier != null) ? job.classifier.peek(file) : null;
+		boolean knownNonDICOM = (cached != null) && !cached.booleanValue();
+		if (knownNonDICOM || (DicomHeader.getInstance(file) == null)) {
+			job.skippedFiles.incrementAndGet();
+			job.scannedFiles.incrementAndGet();
+			job.processedBytes.addAndGet(file.length());
+			return;
+		}
+		synchronized (this) { pendingCopies++; }
+		copyPool.execute(new Runnable() {
+			public void run() {
+				try { copyFile(file); }
+				finally { endCopy(); }
+			}
+		});
+	}
+
+	private synchronized void endCopy() {
+		pendingCopies--;
+		notifyAll();
+	}
+
+	//Wait for the copy stage to finish the files of this job. Copies
+	//are dropped if the pool is shut down, which only happens after
+	//all jobs have been cancelled.
+	private synchronized void awaitCopies() {
+		try {
+			while ((pendingCopies > 0) && !(job.isCancelled() && copyPool.isShutdown())) wait(1000);
+		}
+		catch (InterruptedException stop) { Thread.currentThread().interrupt(); }
+	}
+
+	//Copy one DICOM object to the import directory and queue it.
+	private void copyFile(File file) {
+		if (job.isCancelled()) return;
+		try {
+			File destFile = File.createTempFile("DCM-", ".partial", job.toDir);
+			if (FileUtil.copy(file, destFile)) {
+				job.queue.enqueue(destFile);
+				job.acceptedFiles.incrementAndGet();
+			}
+			else job.failedFiles.incrementAndGet();
+			destFile.delete();
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to submit "+file, ex);
+			job.failedFiles.incrementAndGet();
+		}
+		finally {
+			job.scannedFiles.incrementAndGet();
+			job.processedBytes.addAndGet(file.length());
+		}
+	}
+
+	//Walk the contents of a list of files and directories.
+	class DirectoryTask extends RecursiveAction {
+		final List<File> entries;
+		DirectoryTask(List<File> entries) {
+			this.entries = entries;
+		}
+		protected void compute() {
+			if (job.isCancelled()) return;
+			List<RecursiveAction> tasks = new LinkedList<RecursiveAction>();
+			List<File> batch = new LinkedList<File>();
+			for (File entry : entries) {
+				if (entry.isDirectory()) {
+					File[] files = entry.listFiles();
+					if (files == null) continue;
+					List<File> list = new LinkedList<File>();
+					for (File f : files) list.add(f);
+					tasks.add(new DirectoryTask(list));
+				}
+				else if (entry.isFile()) {
+					if (!job.sized) {
+						job.foundFiles.incrementAndGet();
+						job.foundBytes.addAndGet(entry.length());
+					}
+					batch.add(entry);
+					if (batch.size() >= filesPerTask) {
+						tasks.add(new FileTask(batch));
+						batch = new LinkedList<File>();
+					}
+				}
+			}
+			if (batch.size() > 0) tasks.add(new FileTask(batch));
+			invokeAll(tasks);
+		}
+	}
+
+	//Submit a batch of files from one directory.
+	class FileTask extends RecursiveAction {
+		final List<File> files;
+		FileTask(List<File> files) {
+			this.files = files;
+		}
+		protected void compute() {
+			for (File file : files) {
+				if (job.isCancelled()) return;
+				submitFile(file);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.QueueManager;
+
+/**
+ * A submission of files to the import pipeline, running in the background.
+ * <p>
+ * The job records its progress as the ImportEngine walks the files:
+ * files and bytes found, files examined, files accepted and skipped, and bytes
+ * processed. A job can be cancelled at any time; the engine stops taking
+ * new work, and the files already queued stay in the pipeline.
+ */
+class ImportJob implements Runnable {
+
+	static final Logger logger = Logger.getLogger(ImportJob.class);
+
+	static final String QUEUED = "queued";
+	static final String RUNNING = "running";
+	static final String COMPLETE = "complete";
+	static final String CANCELLED = "cancelled";
+	static final String FAILED = "failed";
+
+	final String id;
+	final List<File> files;
+	final File toDir;
+	final QueueManager queue;
+	final ForkJoinPool pool;
+	final ExecutorService copyPool;
+	final FileClassifier classifier;
+	final long createTime;
+
+	final AtomicLong foundFiles = new AtomicLong(0);
+	final AtomicLong foundBytes = new AtomicLong(0);
+	final AtomicLong scannedFiles = new AtomicLong(0);
+	final AtomicLong acceptedFiles = new AtomicLong(0);
+	final AtomicLong skippedFiles = new AtomicLong(0);
+	final AtomicLong failedFiles = new AtomicLong(0);
+	final AtomicLong processedBytes = new AtomicLong(0);
+
+	volatile boolean sized = false;
+	volatile boolean cancelled = false;
+	volatile String state = QUEUED;
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+
+	/**
+	 * Create a job.
+	 * @param id the ID of the job.
+	 * @param files the files and directories to submit.
+	 * @param toDir the directory in which copies are made before they are queued.
+	 * @param queue the queue of the import pipeline.
+	 * @param pool the pool that walks and parses the files, shared by all jobs.
+	 * @param copyPool the pool that copies and enqueues the files, shared by all jobs.
+	 * @param classifier the cache of file classifications, or null.
+	 */
+	ImportJob(String id, List<File> files, File toDir, QueueManager queue,
+				ForkJoinPool pool, ExecutorService copyPool, FileClassifier classifier) {
+		this.id = id;
+		this.files = files;
+		this.toDir = toDir;
+		this.queue = queue;
+		this.pool = pool;
+		this.copyPool = copyPool;
+		this.classifier = classifier;
+		this.createTime = System.currentTimeMillis();
+	}
+
+	public void run() {
+		if (cancelled) {
+			finish(CANCELLED);
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		state = RUNNING;
+		logger.info("Import job "+id+" started");
+		try {
+			new ImportEngine(this).submit(pool, copyPool);
+			finish(cancelled ? CANCELLED : COMPLETE);
+		}
+		catch (Exception ex) {
+			logger.warn("Import job "+id+" failed", ex);
+			finish(FAILED);
+		}
+	}
+
+	private void finish(String state) {
+		endTime = System.currentTimeMillis();
+		this.state = state;
+		logger.info("Import job "+id+" "+state+": "+acceptedFiles.get()+" accepted, "
+						+skippedFiles.get()+" skipped, "+failedFiles.get()+" failed");
+	}
+
+	/**
+	 * Set the totals of the files to be submitted, if they are already known,
+	 * so the engine does not count them as it finds them.
+	 * @param files the number of files.
+	 * @param bytes the total size of the files.
+	 */
+	void setSize(long files, long bytes) {
+		foundFiles.set(files);
+		foundBytes.set(bytes);
+		sized = true;
+	}
+
+	/**
+	 * Cancel the job.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	boolean isFinished() {
+		return (endTime != 0);
+	}
+
+	/**
+	 * Get the processing rate.
+	 * @return the number of bytes processed per second since the job started.
+	 */
+	long getBytesPerSecond() {
+		if (startTime == 0) return 0;
+		long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+		long elapsed = Math.max(1, end - startTime);
+		return processedBytes.get() * 1000 / elapsed;
+	}
+
+	/**
+	 * Estimate the time remaining from the bytes found so far
+	 * and the processing rate. The estimate grows while the walk
+	 * is still finding files.
+	 * @return the estimated number of seconds remaining, or -1 if unknown.
+	 */
+	long getETA() {
+		if (isFinished()) return 0;
+		long rate = getBytesPerSecond();
+		if (rate == 0) return -1;
+		long remaining = Math.max(0, foundBytes.get() - processedBytes.get());
+		return remaining / rate;
+	}
+
+	/**
+	 * Get an XML element string describing the progress of the job.
+	 * @return the XML string.
+	 */
+	String toXML() {
+		return
+			"<job id=\""+id+"\" state=\""+state+"\""
+			+ " found=\""+foundFiles.get()+"\""
+			+ " scanned=\""+scannedFiles.get()+"\""
+			+ " acceptedFileCount=\""+acceptedFiles.get()+"\""
+			+ " skippedFileCount=\""+skippedFiles.get()+"\""
+			+ " failedFileCount=\""+failedFiles.get()+"\""
+			+ " bytes=\""+processedBytes.get()+"\""
+			+ " bytesPerSecond=\""+getBytesPerSecond()+"\""
+			+ " eta=\""+getETA()+"\""
+			+ " created=\""+createTime+"\""
+			+ "/>";
+	}
+}
@@ -0,0 +1,179 @@
+package edu.uams.tcia;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.rsna.server.HttpRequest;
+
+/**
+ * The sort order, filter, and page of a paginated listing.
+ * <p>
+ * The request parameters are:
+ * <ul>
+ * <li>sort: the field by which the items are sorted (default: the first
+ * field supported by the listing)
+ * <li>order: asc (default) or desc
+ * <li>prefix: only items whose sort field starts with this value are listed
+ * <li>limit: the maximum number of items in the page (default 1000, at most 10000)
+ * <li>cursor: the next attribute of the previous page
+ * </ul>
+ * The listing offers every item to the query; the query keeps only the
+ * page of items that follow the cursor, in a bounded heap, so the memory
+ * used does not depend on the size of the listing.
+ */
+class ListingQuery {
+
+	static final int defaultLimit = 1000;
+	static final int maxLimit = 10000;
+
+	final String sort;
+	final boolean descending;
+	final String prefix;
+	final int limit;
+	final Item cursor;
+	final Comparator<Item> order;
+	final PriorityQueue<Item> page;
+	int total = 0;
+	int remaining = 0;
+
+	/**
+	 * Get the query of a request.
+	 * @param req the request.
+	 * @param fields the names of the fields supported by the listing;
+	 * the first is the default sort field.
+	 * @return the query, or null if the request has none of the query
+	 * parameters, in which case the complete listing is requested.
+	 */
+	static ListingQuery getInstance(HttpRequest req, String[] fields) {
+		if (!req.hasParameter("sort") && !req.hasParameter("prefix")
+				&& !req.hasParameter("limit") && !req.hasParameter("cursor")) return null;
+		String sort = req.getParameter("sort", fields[0]);
+		boolean known = false;
+		for (String field : fields) known |= field.equals(sort);
+		if (!known) sort = fields[0];
+		int limit = defaultLimit;
+		try { limit = Integer.parseInt(req.getParameter("limit", "").trim()); }
+		catch (Exception useDefault) { }
+		return new ListingQuery(
+					sort,
+					req.getParameter("order", "asc").equals("desc"),
+					req.getParameter("prefix", ""),
+					limit,
+					req.getParameter("cursor", ""));
+	}
+
+	ListingQuery(String sort, boolean descending, String prefix, int limit, String cursor) {
+		this.sort = sort;
+		this.descending = descending;
+		this.prefix = prefix;
+		this.limit = Math.max(1, Math.min(limit, maxLimit));
+		this.cursor = decode(cursor);
+		final Comparator<Item> ascending = new Comparator<Item>() {
+			public int compare(Item a, Item b) {
+				if (a.group != b.group) return (a.group < b.group) ? -1 : 1;
+				int c = a.value.compareTo(b.value);
+				return (c != 0) ? c : a.path.compareTo(b.path);
+			}
+		};
+		order = descending ? new Comparator<Item>() {
+			public int compare(Item a, Item b) { return ascending.compare(b, a); }
+		} : ascending;
+		//The head of the heap is the last item of the page
+		page = new PriorityQueue<Item>(Math.min(this.limit, 1024) + 1, new Comparator<Item>() {
+			public int compare(Item a, Item b) { return order.compare(b, a); }
+		});
+	}
+
+	/**
+	 * Offer an item to the page.
+	 * @param group the group of the item; groups are listed in ascending order
+	 * whatever the sort order (for example, directories before files).
+	 * @param value the value of the sort field.
+	 * @param path the unique path of the item, which breaks ties.
+	 * @param payload the object to be listed.
+	 */
+	void offer(int group, String value, String path, Object payload) {
+		if (value == null) value = "";
+		if (!value.startsWith(prefix)) return;
+		total++;
+		Item item = new Item(group, value, path, payload);
+		if ((cursor != null) && (order.compare(item, cursor) <= 0)) return;
+		remaining++;
+		if ((page.size() < limit) || (order.compare(item, page.peek()) < 0)) {
+			page.add(item);
+			if (page.size() > limit) page.poll();
+		}
+	}
+
+	/**
+	 * Get the items of the page, in order.
+	 * @return the items.
+	 */
+	List<Item> getPage() {
+		LinkedList<Item> list = new LinkedList<Item>();
+		PriorityQueue<Item> copy = new PriorityQueue<Item>(page);
+		while (!copy.isEmpty()) list.addFirst(copy.poll());
+		return list;
+	}
+
+	/**
+	 * Get the cursor for the next page.
+	 * @return the cursor, or null if this is the last page.
+	 */
+	String getNextCursor() {
+		if ((remaining <= page.size()) || page.isEmpty()) return null;
+		return encode(page.peek());
+	}
+
+	/**
+	 * Make a sort value for a numeric field, so that numbers sort
+	 * numerically. Values that are not numbers are returned unchanged.
+	 * @param s the value.
+	 * @return the sort value.
+	 */
+	static String numeric(String s) {
+		s = s.trim();
+		if ((s.length() == 0) || (s.length() > 19)) return s;
+		for (int i=0; i<s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) return s;
+		}
+		return "0000000000000000000".substring(s.length()) + s;
+	}
+
+	//The cursor is the hex encoding of the position of the last item of the page.
+	static String encode(Item item) {
+		try {
+			byte[] b = (item.group + "\u0000" + item.value + "\u0000" + item.path).getBytes("UTF-8");
+			StringBuffer sb = new StringBuffer();
+			for (byte x : b) sb.append(String.format("%02x", x & 0xff));
+			return sb.toString();
+		}
+		catch (UnsupportedEncodingException never) { return null; }
+	}
+
+	static Item decode(String cursor) {
+		if ((cursor == null) || cursor.equals("")) return null;
+		try {
+			byte[] b = new byte[cursor.length() / 2];
+			for (int i=0; i<b.length; i++) b[i] = (byte)Integer.parseInt(cursor.substring(2*i, 2*i+2), 16);
+			String[] s = new String(b, "UTF-8").split("\u0000", -1);
+			return new Item(Integer.parseInt(s[0]), s[1], s[2], null);
+		}
+		catch (Exception badCursor) { return null; }
+	}
+
+	static class Item {
+		final int group;
+		final String value;
+		final String path;
+		final Object payload;
+		Item(int group, String value, String path, Object payload) {
+			this.group = group;
+			this.value = value;
+			this.path = path;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package edu.uams.tcia;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A writer for a large XML listing. The listing is written element
+ * by element to a temporary file, which the response then sends from
+ * disk, so no document is built in memory.
+ */
+class ListingWriter {
+
+	static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	final File file;
+	final Writer writer;
+	final XMLStreamWriter xml;
+
+	/**
+	 * Create a writer on a new temporary file.
+	 * @throws Exception if the file cannot be created.
+	 */
+	ListingWriter() throws Exception {
+		file = File.createTempFile("LST-", ".xml");
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		xml = factory.createXMLStreamWriter(writer);
+	}
+
+	/**
+	 * Close the listing.
+	 * @return the file containing the listing.
+	 * @throws Exception if the file cannot be written.
+	 */
+	File close() throws Exception {
+		xml.flush();
+		xml.close();
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * Close the listing and delete it, after an error.
+	 */
+	void discard() {
+		try { close(); }
+		catch (Exception ignore) { }
+		file.delete();
+	}
+}
@@ -0,0 +1,157 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * The engine that moves the files in a storage directory tree to the
+ * flat import directory of the next pipeline.
+ * <p>
+ * The tree is walked in parallel by a work-stealing pool, like the
+ * ImportEngine: each directory is a task that forks a task for each of its
+ * subdirectories and one for each batch of its files, and deletes the
+ * directory when it has been emptied. Each file is moved by an atomic
+ * rename to a name that is unique to the job (its ID and creation time and
+ * a sequence number), so it appears in the destination complete, in one
+ * step, is never in both places, and never replaces another file. If the
+ * destination is on another file system, the files are moved by
+ * FileObject.moveToDirectory as before. The export manifest is updated
+ * once per batch.
+ */
+class MoveEngine {
+
+	static final Logger logger = Logger.getLogger(MoveEngine.class);
+
+	static final int filesPerTask = 256;
+
+	final MoveJob job;
+	final String prefix;
+	final AtomicLong sequence = new AtomicLong(0);
+	volatile boolean atomicMoveSupported = true;
+
+	/**
+	 * Create an engine for one job.
+	 * @param job the job, which supplies the files and the destination
+	 * and receives the progress.
+	 */
+	MoveEngine(MoveJob job) {
+		this.job = job;
+		prefix = "MV-" + job.id + "-" + job.createTime + "-";
+	}
+
+	/**
+	 * Move the files of the job, returning when all of them
+	 * have been moved or the job has been cancelled.
+	 * @param pool the pool in which to run the tasks.
+	 */
+	void move(ForkJoinPool pool) {
+		long startTime = System.currentTimeMillis();
+		job.toDir.mkdirs();
+		if (job.file.isDirectory()) pool.invoke(new DirectoryTask(job.file, true));
+		else {
+			List<File> files = new LinkedList<File>();
+			files.add(job.file);
+			job.foundFiles.incrementAndGet();
+			pool.invoke(new FileTask(files));
+		}
+		logger.debug("Move job "+job.id+": "+job.movedFiles.get()+" files moved in "
+						+(System.currentTimeMillis() - startTime)+" ms");
+	}
+
+	//Move one file to the destination directory.
+	//Return the moved file, or null if the file could not be moved.
+	private File moveFile(File file) {
+		if (atomicMoveSupported) {
+			File dest = new File(job.toDir, prefix + sequence.incrementAndGet() + "-" + file.getName());
+			try {
+				Files.move(file.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return dest;
+			}
+			catch (AtomicMoveNotSupportedException otherFileSystem) {
+				logger.debug("Unable to rename "+file+" into "+job.toDir+"; moving the files instead");
+				atomicMoveSupported = false;
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to move "+file, ex);
+				return null;
+			}
+		}
+		FileObject fob = new FileObject(file);
+		return fob.moveToDirectory(job.toDir) ? fob.getFile() : null;
+	}
+
+	//Walk a directory, deleting it when it has been emptied unless it is the root.
+	class DirectoryTask extends RecursiveAction {
+		final File dir;
+		final boolean isRoot;
+		DirectoryTask(File dir, boolean isRoot) {
+			this.dir = dir;
+			this.isRoot = isRoot;
+		}
+		protected void compute() {
+			if (job.isCancelled()) return;
+			File[] files = dir.listFiles();
+			if (files == null) return;
+			List<RecursiveAction> tasks = new LinkedList<RecursiveAction>();
+			List<File> batch = new LinkedList<File>();
+			for (File file : files) {
+				if (file.isDirectory()) tasks.add(new DirectoryTask(file, false));
+				else if (file.isFile()) {
+					job.foundFiles.incrementAndGet();
+					batch.add(file);
+					if (batch.size() >= filesPerTask) {
+						tasks.add(new FileTask(batch));
+						batch = new LinkedList<File>();
+					}
+				}
+			}
+			if (batch.size() > 0) tasks.add(new FileTask(batch));
+			invokeAll(tasks);
+			String[] remaining = dir.list();
+			if (!isRoot && (remaining != null) && (remaining.length == 0)) dir.delete();
+		}
+	}
+
+	//Move a batch of files from one directory and log them together.
+	class FileTask extends RecursiveAction {
+		final List<File> files;
+		FileTask(List<File> files) {
+			this.files = files;
+		}
+		protected void compute() {
+			boolean export = job.kind.equals(MoveJob.EXPORT);
+			List<String> series = new LinkedList<String>();
+			int moved = 0;
+			for (File file : files) {
+				if (job.isCancelled()) break;
+				long size = file.length();
+				//Only the header is needed for the log; the object is moved without parsing it.
+				DicomHeader header = export ? DicomHeader.getInstance(file) : null;
+				File dest = moveFile(file);
+				if (dest == null) {
+					job.failedFiles.incrementAndGet();
+					continue;
+				}
+				moved++;
+				job.movedFiles.incrementAndGet();
+				job.movedBytes.addAndGet(size);
+				if (header != null) series.add(header.getSeriesInstanceUID());
+			}
+			if (job.manifest != null) {
+				if (export) {
+					if (series.size() > 0) job.manifest.logExportedObjects(series);
+				}
+				else if (moved > 0) job.manifest.incrementQueuedInstances(moved);
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A hand-off of the files in a storage directory to the import directory
+ * of the next pipeline, running in the background.
+ * <p>
+ * An anonymize job moves the files from the import storage to the input of
+ * the anonymizer pipeline and counts them as queued instances in the export
+ * manifest. An export job moves the files from the anonymizer storage to the
+ * input of the export pipeline and logs them as exported. The job records
+ * the files found, moved, and failed as the MoveEngine walks the tree, and
+ * it can be cancelled at any time; the files already moved stay moved.
+ */
+class MoveJob implements Runnable {
+
+	static final Logger logger = Logger.getLogger(MoveJob.class);
+
+	static final String ANONYMIZE = "anonymize";
+	static final String EXPORT = "export";
+
+	final String id;
+	final String kind;
+	final File file;
+	final File toDir;
+	final ForkJoinPool pool;
+	final ExportManifestLogPlugin manifest;
+	final StorageIndex index;
+	final long createTime;
+
+	final AtomicLong foundFiles = new AtomicLong(0);
+	final AtomicLong movedFiles = new AtomicLong(0);
+	final AtomicLong failedFiles = new AtomicLong(0);
+	final AtomicLong movedBytes = new AtomicLong(0);
+
+	volatile boolean cancelled = false;
+	volatile String state = ImportJob.QUEUED;
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+
+	/**
+	 * Create a job.
+	 * @param id the ID of the job.
+	 * @param kind ANONYMIZE or EXPORT.
+	 * @param file the file or directory to move.
+	 * @param toDir the import directory of the next pipeline.
+	 * @param pool the pool that runs the engine, shared by all jobs.
+	 * @param manifest the export manifest, or null.
+	 * @param index the index of the storage from which the files are moved.
+	 */
+	MoveJob(String id, String kind, File file, File toDir, ForkJoinPool pool,
+			ExportManifestLogPlugin manifest, StorageIndex index) {
+		this.id = id;
+		this.kind = kind;
+		this.file = file;
+		this.toDir = toDir;
+		this.pool = pool;
+		this.manifest = manifest;
+		this.index = index;
+		this.createTime = System.currentTimeMillis();
+	}
+
+	public void run() {
+		if (cancelled) {
+			finish(ImportJob.CANCELLED);
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		state = ImportJob.RUNNING;
+		logger.info("Move job "+id+" ("+kind+") started");
+		try {
+			new MoveEngine(this).move(pool);
+			finish(cancelled ? ImportJob.CANCELLED : ImportJob.COMPLETE);
+		}
+		catch (Exception ex) {
+			logger.warn("Move job "+id+" failed", ex);
+			finish(ImportJob.FAILED);
+		}
+	}
+
+	private void finish(String state) {
+		endTime = System.currentTimeMillis();
+		if (index != null) index.invalidate();
+		this.state = state;
+		logger.info("Move job "+id+" ("+kind+") "+state+": "+movedFiles.get()+" moved, "
+						+failedFiles.get()+" failed");
+	}
+
+	/**
+	 * Cancel the job.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	boolean isFinished() {
+		return (endTime != 0);
+	}
+
+	/**
+	 * Get the processing rate.
+	 * @return the number of files moved per second since the job started.
+	 */
+	long getFilesPerSecond() {
+		if (startTime == 0) return 0;
+		long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+		long elapsed = Math.max(1, end - startTime);
+		return movedFiles.get() * 1000 / elapsed;
+	}
+
+	/**
+	 * Estimate the time remaining from the files found so far
+	 * and the processing rate.
+	 * @return the estimated number of seconds remaining, or -1 if unknown.
+	 */
+	long getETA() {
+		if (isFinished()) return 0;
+		long rate = getFilesPerSecond();
+		if (rate == 0) return -1;
+		long remaining = Math.max(0, foundFiles.get() - movedFiles.get() - failedFiles.get());
+		return remaining / rate;
+	}
+
+	/**
+	 * Get an XML element string describing the progress of the job.
+	 * @return the XML string.
+	 */
+	String toXML() {
+		return
+			"<job id=\""+id+"\" kind=\""+kind+"\" state=\""+state+"\""
+			+ " found=\""+foundFiles.get()+"\""
+			+ " movedFileCount=\""+movedFiles.get()+"\""
+			+ " failedFileCount=\""+failedFiles.get()+"\""
+			+ " bytes=\""+movedBytes.get()+"\""
+			+ " filesPerSecond=\""+getFilesPerSecond()+"\""
+			+ " eta=\""+getETA()+"\""
+			+ " created=\""+createTime+"\""
+			+ "/>";
+	}
+}
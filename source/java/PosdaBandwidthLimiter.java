@@ -0,0 +1,186 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * A token-bucket limit on the upload bandwidth of a Posda export service,
+ * shared by all its workers.
+ * <p>
+ * The permitted rate depends on the time of day. The schedule is a list of
+ * windows of the form HH:MM-HH:MM=rate, separated by commas or semicolons,
+ * where the rate is in Mbit/s and 0 means unlimited. A window may span
+ * midnight (for example 19:00-07:00). Times not covered by any window are
+ * unlimited. For example, "07:00-19:00=20" limits uploads to 20 Mbit/s during
+ * the day and leaves them unlimited at night.
+ * <p>
+ * The bucket holds at most one second of tokens. A writer takes the tokens
+ * for its bytes, going into debt if there are not enough, and then sleeps
+ * until the debt would be repaid, outside the lock, so writers are served
+ * in order without blocking each other while they wait.
+ */
+class PosdaBandwidthLimiter {
+
+	static final Logger logger = Logger.getLogger(PosdaBandwidthLimiter.class);
+
+	final List<Window> windows;
+	double rate = 0;		//bytes per ms; 0 means unlimited
+	double tokens = 0;
+	long lastRefill = 0;
+	long lastRateCheck = 0;
+	long bytesLimited = 0;
+	long timeWaited = 0;
+
+	/**
+	 * Construct a limiter.
+	 * @param schedule the schedule of windows and rates.
+	 * @throws IllegalArgumentException if the schedule cannot be parsed.
+	 */
+	PosdaBandwidthLimiter(String schedule) {
+		windows = parse(schedule);
+	}
+
+	/**
+	 * Determine whether the schedule limits any time of day.
+	 * @return true if at least one window has a rate limit.
+	 */
+	boolean isLimited() {
+		for (Window window : windows) {
+			if (window.rate > 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Take the tokens for a number of bytes, waiting if necessary.
+	 * @param n the number of bytes about to be sent.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	void acquire(int n) throws InterruptedException {
+		long wait = 0;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			updateRate(now);
+			if (rate == 0) return;
+			tokens = Math.min(rate * 1000, tokens + (now - lastRefill) * rate);
+			lastRefill = now;
+			tokens -= n;
+			bytesLimited += n;
+			if (tokens < 0) {
+				wait = (long)Math.ceil(-tokens / rate);
+				timeWaited += wait;
+			}
+		}
+		if (wait > 0) Thread.sleep(wait);
+	}
+
+	/**
+	 * Wrap a stream so that writes to it are limited.
+	 * @param out the stream.
+	 * @return the limited stream.
+	 */
+	OutputStream wrap(OutputStream out) {
+		return new LimitedOutputStream(out);
+	}
+
+	//Get the rate for the current time of day, checking at most once a second.
+	private void updateRate(long now) {
+		if (now - lastRateCheck < 1000) return;
+		lastRateCheck = now;
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(now);
+		int minute = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+		double newRate = 0;
+		for (Window window : windows) {
+			if (window.contains(minute)) {
+				newRate = window.rate;
+				break;
+			}
+		}
+		if (newRate != rate) {
+			logger.info("Upload bandwidth limit changed to "+format(newRate));
+			rate = newRate;
+			tokens = rate * 1000;
+			lastRefill = now;
+		}
+	}
+
+	static List<Window> parse(String schedule) {
+		List<Window> list = new LinkedList<Window>();
+		for (String item : schedule.split("[,;]")) {
+			item = item.trim();
+			if (item.equals("")) continue;
+			try {
+				int eq = item.indexOf("=");
+				String[] times = item.substring(0, eq).split("-");
+				double mbps = Double.parseDouble(item.substring(eq+1).trim());
+				list.add(new Window(getMinute(times[0]), getMinute(times[1]), mbps * 1000000 / 8 / 1000));
+			}
+			catch (Exception ex) {
+				throw new IllegalArgumentException("Invalid bandwidth window: \""+item+"\"");
+			}
+		}
+		return list;
+	}
+
+	static int getMinute(String time) {
+		String[] s = time.trim().split(":");
+		return Integer.parseInt(s[0]) * 60 + ((s.length > 1) ? Integer.parseInt(s[1]) : 0);
+	}
+
+	static String format(double rate) {
+		if (rate == 0) return "unlimited";
+		return String.format("%.1f Mbit/s", rate * 1000 * 8 / 1000000);
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the limiter.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		updateRate(System.currentTimeMillis());
+		return
+			"<tr><td width=\"20%\">Bandwidth limit</td><td>"+format(rate)+"</td></tr>"
+			+ "<tr><td width=\"20%\">Bytes limited / time waited</td><td>"
+						+bytesLimited+" / "+(timeWaited/1000)+" s</td></tr>";
+	}
+
+	static class Window {
+		final int start;
+		final int end;
+		final double rate;
+		Window(int start, int end, double rate) {
+			this.start = start;
+			this.end = end;
+			this.rate = Math.max(0, rate);
+		}
+		boolean contains(int minute) {
+			if (start <= end) return (minute >= start) && (minute < end);
+			return (minute >= start) || (minute < end);
+		}
+	}
+
+	class LimitedOutputStream extends FilterOutputStream {
+		LimitedOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			take(1);
+			out.write(b);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			take(len);
+			out.write(b, off, len);
+		}
+		private void take(int n) throws IOException {
+			try { acquire(n); }
+			catch (InterruptedException ex) { throw new InterruptedIOException(); }
+		}
+	}
+}
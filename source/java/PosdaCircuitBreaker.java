@@ -0,0 +1,119 @@
+package org.rsna.ctp.stdstages;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A circuit breaker for a Posda destination.
+ * <p>
+ * The breaker opens after a number of consecutive failures that indicate the
+ * destination is unreachable or overloaded. While it is open, no exports are
+ * attempted. After the probe interval, one request is allowed through
+ * (half-open); if it succeeds the breaker closes, otherwise it opens again.
+ */
+class PosdaCircuitBreaker {
+
+	static final Logger logger = Logger.getLogger(PosdaCircuitBreaker.class);
+
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int HALF_OPEN = 2;
+	static final String[] stateNames = { "closed", "open", "half-open" };
+
+	final String name;
+	final int threshold;
+	final long probeInterval;
+	int state = CLOSED;
+	int consecutiveFailures = 0;
+	long openedAt = 0;
+	long openCount = 0;
+
+	/**
+	 * Construct a breaker.
+	 * @param name the name of the destination, for logging.
+	 * @param threshold the number of consecutive failures that opens the breaker.
+	 * @param probeInterval the time in ms between probes while the breaker is open.
+	 */
+	PosdaCircuitBreaker(String name, int threshold, long probeInterval) {
+		this.name = name;
+		this.threshold = Math.max(1, threshold);
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Determine whether a request may be sent. When the breaker is open
+	 * and the probe interval has elapsed, this method allows one request
+	 * and moves the breaker to the half-open state.
+	 * @return true if the request may be sent.
+	 */
+	synchronized boolean allowRequest() {
+		if (state == CLOSED) return true;
+		long now = System.currentTimeMillis();
+		if (now - openedAt >= probeInterval) {
+			//Also allow a new probe if an earlier one never reported.
+			state = HALF_OPEN;
+			openedAt = now;
+			logger.info(name+": probing destination");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether requests are currently being blocked.
+	 * @return true if the breaker is open.
+	 */
+	synchronized boolean isOpen() {
+		return (state == OPEN);
+	}
+
+	/**
+	 * Record a request that reached the destination.
+	 */
+	synchronized void recordSuccess() {
+		if (state != CLOSED) logger.info(name+": destination is available; resuming export");
+		state = CLOSED;
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * Record a request that failed because the destination is unreachable or overloaded.
+	 */
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		if ((state == HALF_OPEN) || ((state == CLOSED) && (consecutiveFailures >= threshold))) {
+			if (state == CLOSED) {
+				logger.warn(name+": destination is unavailable; suspending export");
+				openCount++;
+			}
+			state = OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Determine whether an HTTP response code indicates
+	 * that the destination is failing.
+	 * @param responseCode the response code.
+	 * @return true for 429 and 5xx responses.
+	 */
+	static boolean isFailure(int responseCode) {
+		return (responseCode == 429) || (responseCode >= 500);
+	}
+
+	/**
+	 * Get the name of the state of the breaker.
+	 * @return closed, open, or half-open.
+	 */
+	synchronized String getStateName() {
+		return stateNames[state];
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the breaker.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		return "<tr><td width=\"20%\">Destination circuit</td><td>"+stateNames[state]
+					+" ("+consecutiveFailures+" consecutive failures; opened "+openCount+" times)</td></tr>";
+	}
+}
@@ -0,0 +1,135 @@
+package org.rsna.ctp.stdstages;
+
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+
+/**
+ * An adaptive limit on the number of uploads in flight to a Posda server.
+ * <p>
+ * The limit (the window) grows additively, by about one request per window of
+ * completed requests, while the latency of the server stays below the target.
+ * The latency is measured from the end of the request body to the response,
+ * so the time spent streaming a large object, including any waits imposed by
+ * the bandwidth schedule, is not charged to the server.
+ * It is halved when a request times out or is answered with a 429 or 503
+ * response. Failures on the client side do not change the window. The window is cut at most once per latency target,
+ * so a burst of failures from one overload event only halves it once.
+ */
+class PosdaConcurrencyLimiter {
+
+	static final Logger logger = Logger.getLogger(PosdaConcurrencyLimiter.class);
+
+	static final int sampleCount = 1024;
+
+	final int maxWindow;
+	final long latencyTarget;
+	double window = 1.0;
+	int inFlight = 0;
+	long lastDecrease = 0;
+	final long[] samples = new long[sampleCount];
+	int sampleIndex = 0;
+	int samplesTaken = 0;
+	long overloads = 0;
+
+	/**
+	 * Construct a limiter.
+	 * @param maxWindow the largest permitted number of requests in flight.
+	 * @param latencyTarget the latency in ms below which the server is considered healthy.
+	 */
+	PosdaConcurrencyLimiter(int maxWindow, long latencyTarget) {
+		this.maxWindow = Math.max(1, maxWindow);
+		this.latencyTarget = Math.max(1, latencyTarget);
+	}
+
+	/**
+	 * Wait until the number of requests in flight is below the window.
+	 * @return the start time of the request. The caller passes it to release,
+	 * or the time at which it finished sending the request body if it sent one.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	synchronized long acquire() throws InterruptedException {
+		while (inFlight >= (int)window) wait();
+		inFlight++;
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Record the completion of a request and adjust the window.
+	 * @param sentTime the time from which the latency is measured: the time
+	 * the request body was sent, or the value returned by acquire.
+	 * @param overloaded true if the request failed in a way that indicates
+	 * that the server or the network is overloaded.
+	 */
+	synchronized void release(long sentTime, boolean overloaded) {
+		long now = System.currentTimeMillis();
+		long latency = now - sentTime;
+		inFlight--;
+		if (overloaded) {
+			overloads++;
+			if (now - lastDecrease > latencyTarget) {
+				window = Math.max(1.0, window / 2.0);
+				lastDecrease = now;
+				logger.debug("Overload: window reduced to "+(int)window);
+			}
+		}
+		else {
+			samples[sampleIndex] = latency;
+			sampleIndex = (sampleIndex + 1) % sampleCount;
+			if (samplesTaken < sampleCount) samplesTaken++;
+			if (latency <= latencyTarget) {
+				window = Math.min((double)maxWindow, window + 1.0 / window);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Record the end of a request that never reached the server,
+	 * without adjusting the window.
+	 */
+	synchronized void cancel() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Determine whether an HTTP response code indicates overload.
+	 * @param responseCode the response code.
+	 * @return true for 429 (Too Many Requests) and 503 (Service Unavailable) responses.
+	 */
+	static boolean isOverload(int responseCode) {
+		return (responseCode == 429) || (responseCode == 503);
+	}
+
+	/**
+	 * Get the current window.
+	 * @return the number of requests that may be in flight.
+	 */
+	synchronized int getWindow() {
+		return (int)window;
+	}
+
+	/**
+	 * Get a latency percentile over the most recent successful requests.
+	 * @param p the percentile (0-100).
+	 * @return the latency in ms, or 0 if no requests have completed.
+	 */
+	synchronized long getLatency(int p) {
+		if (samplesTaken == 0) return 0;
+		long[] sorted = Arrays.copyOf(samples, samplesTaken);
+		Arrays.sort(sorted);
+		int k = (int)Math.ceil(p / 100.0 * samplesTaken) - 1;
+		return sorted[Math.max(0, Math.min(samplesTaken - 1, k))];
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the limiter.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		return
+			"<tr><td width=\"20%\">Concurrency window</td><td>"+(int)window+" of "+maxWindow
+					+" ("+inFlight+" in flight; "+overloads+" overloads)</td></tr>"
+			+ "<tr><td width=\"20%\">Latency p50 / p99</td><td>"+getLatency(50)+" / "+getLatency(99)+" ms</td></tr>";
+	}
+}
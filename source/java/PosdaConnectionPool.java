@@ -0,0 +1,184 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of keep-alive connections to a Posda server.
+ * <p>
+ * HttpUtil.getConnection creates a new SSLContext for every HTTPS connection,
+ * so the JDK can neither reuse an idle socket nor resume a TLS session. This
+ * class keeps a single SSLSocketFactory for the life of the export service,
+ * which lets the JDK keep-alive cache hand back idle sockets and lets the
+ * SSL session cache resume sessions on new ones. Connections are released
+ * by draining and closing the response stream rather than by disconnecting.
+ * <p>
+ * The number of simultaneous connections is limited by maxConnections. Idle
+ * sockets are held by the JDK keep-alive cache, which is shared by every
+ * component in the JVM and is not under the control of this class: it keeps
+ * at most http.maxConnections idle sockets per server (default 5) and closes
+ * them after the keep-alive time sent by the server (default 5 seconds). The
+ * JDK reads these system properties once, so they can only be changed on the
+ * command line that starts CTP.
+ */
+class PosdaConnectionPool {
+
+	static final Logger logger = Logger.getLogger(PosdaConnectionPool.class);
+
+	static final int acquireTimeout = 60 * 1000;
+
+	final int maxConnections;
+	final Semaphore permits;
+	final SSLSocketFactory socketFactory;
+	final HostnameVerifier hostnameVerifier;
+	final AtomicInteger active = new AtomicInteger(0);
+	final AtomicLong requests = new AtomicLong(0);
+	final AtomicLong discarded = new AtomicLong(0);
+
+	/**
+	 * Construct a pool.
+	 * @param maxConnections the maximum number of simultaneous connections.
+	 * @param tlsSessionTimeout the time in seconds that a TLS session may be resumed.
+	 * @throws Exception if the SSLContext cannot be created.
+	 */
+	PosdaConnectionPool(int maxConnections, int tlsSessionTimeout) throws Exception {
+		this.maxConnections = Math.max(1, maxConnections);
+		permits = new Semaphore(this.maxConnections, true);
+
+		//Accept all certificates, as HttpUtil does, but use one context
+		//for every connection so sessions and sockets can be reused.
+		TrustManager[] trustManagers = new TrustManager[] { new AcceptAllX509TrustManager() };
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, trustManagers, new SecureRandom());
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+		if (sessionContext != null) sessionContext.setSessionTimeout(Math.max(0, tlsSessionTimeout));
+		socketFactory = sslContext.getSocketFactory();
+		hostnameVerifier = new AcceptAllHostnameVerifier();
+	}
+
+	/**
+	 * Get a connection from the pool. The caller must return the
+	 * connection by calling release, whatever the outcome of the request.
+	 * @param url the URL of the request.
+	 * @param connectTimeout the connection timeout in ms.
+	 * @param readTimeout the read timeout in ms.
+	 * @return the connection, not yet connected.
+	 * @throws AcquireTimeoutException if no connection becomes available.
+	 * @throws Exception if the URL cannot be opened.
+	 */
+	HttpURLConnection getConnection(URL url, int connectTimeout, int readTimeout) throws Exception {
+		if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+			throw new AcquireTimeoutException("No connection available to "+url.getHost());
+		}
+		try {
+			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+			if (conn instanceof HttpsURLConnection) {
+				HttpsURLConnection httpsConn = (HttpsURLConnection)conn;
+				httpsConn.setSSLSocketFactory(socketFactory);
+				httpsConn.setHostnameVerifier(hostnameVerifier);
+			}
+			conn.setUseCaches(false);
+			conn.setDoOutput(true);
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
+			conn.setRequestProperty("Connection", "keep-alive");
+			active.incrementAndGet();
+			requests.incrementAndGet();
+			return conn;
+		}
+		catch (Exception ex) {
+			permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Return a connection to the pool.
+	 * @param conn the connection obtained from getConnection.
+	 * @param reusable true if the exchange completed normally and the
+	 * socket can be returned to the keep-alive cache; false if the socket
+	 * must be closed.
+	 */
+	void release(HttpURLConnection conn, boolean reusable) {
+		if (conn == null) return;
+		try {
+			if (reusable) {
+				//The JDK returns a socket to the keep-alive cache when
+				//its response stream has been read to the end and closed.
+				//Calling disconnect here would close the cached socket.
+				InputStream in = null;
+				try { in = conn.getInputStream(); }
+				catch (Exception ex) { in = conn.getErrorStream(); }
+				drain(in);
+			}
+			else {
+				discarded.incrementAndGet();
+				conn.disconnect();
+			}
+		}
+		finally {
+			active.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	//Read a stream to the end and close it. The stream
+	//may already have been consumed by the caller.
+	private void drain(InputStream in) {
+		if (in == null) return;
+		try {
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1) ; //empty loop
+		}
+		catch (Exception alreadyClosed) { }
+		try { in.close(); }
+		catch (Exception ignore) { }
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the pool.
+	 * @return HTML table rows.
+	 */
+	String getStatusRows() {
+		return
+			"<tr><td width=\"20%\">Active connections</td><td>"+active.get()+" of "+maxConnections+"</td></tr>"
+			+ "<tr><td width=\"20%\">Requests / discarded sockets</td><td>"+requests.get()+" / "+discarded.get()+"</td></tr>";
+	}
+
+	static class AcceptAllX509TrustManager implements X509TrustManager {
+		public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+		public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+		public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+	}
+
+	static class AcceptAllHostnameVerifier implements HostnameVerifier {
+		public boolean verify(String hostname, SSLSession session) { return true; }
+	}
+
+	/**
+	 * The exception thrown when all the connections of the
+	 * pool stay in use for longer than the acquire timeout.
+	 */
+	static class AcquireTimeoutException extends Exception {
+		static final long serialVersionUID = 1L;
+		AcquireTimeoutException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jdbm.helper.FastIterator;
+import jdbm.RecordManager;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * A persistent cache of the MD5 digests of objects waiting for export to Posda.
+ * <p>
+ * Digests are computed in the background when objects enter the export
+ * stage, after every other stage of the pipeline has run, so the digest is
+ * that of the content that is sent, the stage does not hold up the pipeline
+ * while it reads the object, and the export thread usually only has to
+ * stream the file. Requests beyond the limit of the background queue are
+ * dropped, and the export thread computes those digests itself. An object's
+ * path and modification time change as it is copied into the export queue,
+ * so entries are keyed by the SOPInstanceUID and are only used if the size of
+ * the file still matches. Entries are removed when the object has been
+ * exported or rejected; entries left behind by objects that never reach
+ * the export thread are pruned after a week.
+ */
+class PosdaDigestCache {
+
+	static final Logger logger = Logger.getLogger(PosdaDigestCache.class);
+
+	static final int bufferSize = 64 * 1024;
+	static final int commitInterval = 100;
+	static final long maxEntryAge = 7 * 24 * 3600 * 1000L;
+	static final long pruneInterval = 24 * 3600 * 1000L;
+	static final int backgroundThreads = 2;
+	static final int maxPendingDigests = 1024;
+	static final char[] hexChars = "0123456789abcdef".toCharArray();
+
+	final File root;
+	final String dbName = "__digestDB";
+	final ThreadPoolExecutor background;
+	RecordManager recman = null;
+	HTree index = null;
+	int uncommitted = 0;
+	long lastPrune = 0;
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * Open the cache in a directory.
+	 * @param root the directory in which the database is stored.
+	 */
+	PosdaDigestCache(File root) {
+		this.root = root;
+		background = new ThreadPoolExecutor(backgroundThreads, backgroundThreads, 0, TimeUnit.MILLISECONDS,
+								new ArrayBlockingQueue<Runnable>(maxPendingDigests),
+								new ThreadPoolExecutor.DiscardPolicy());
+		open();
+	}
+
+	private void open() {
+		try {
+			File indexFile = new File(root, dbName);
+			recman = JdbmUtil.getRecordManager( indexFile.getPath() );
+			index = JdbmUtil.getHTree(recman, "digestIndex");
+		}
+		catch (Exception ex) {
+			recman = null;
+			index = null;
+			logger.warn("Unable to load the digest cache.");
+		}
+		prune();
+	}
+
+	/**
+	 * Get the digest of a file, using the cached value if one exists for the
+	 * SOPInstanceUID and the file size matches; otherwise compute the digest.
+	 * @param file the file.
+	 * @param uid the SOPInstanceUID of the object, or null if it is not a DICOM object.
+	 * @return the lowercase hex MD5 digest, or the empty string if the file cannot be read.
+	 */
+	String getDigest(File file, String uid) {
+		if ((uid != null) && !uid.equals("")) {
+			DigestEntry entry = get(uid);
+			if ((entry != null) && (entry.size == file.length())) {
+				synchronized (this) { hits++; }
+				return entry.digest;
+			}
+		}
+		synchronized (this) { misses++; }
+		return computeDigest(file);
+	}
+
+	/**
+	 * Compute the digest of a file and store it in the cache.
+	 * @param file the file.
+	 * @param uid the SOPInstanceUID of the object.
+	 * @return the lowercase hex MD5 digest, or the empty string if the file cannot be read.
+	 */
+	String put(File file, String uid) {
+		String digest = computeDigest(file);
+		if ((uid != null) && !uid.equals("") && !digest.equals("")) {
+			put(uid, new DigestEntry(file.length(), digest));
+		}
+		return digest;
+	}
+
+	/**
+	 * Compute the digest of a file in the background and store it in the cache.
+	 * Nothing is stored if the file is gone by the time it is read.
+	 * @param file the file.
+	 * @param uid the SOPInstanceUID of the object.
+	 */
+	void putLater(final File file, final String uid) {
+		if ((uid == null) || uid.equals("")) return;
+		background.execute(new Runnable() {
+			public void run() {
+				put(file, uid);
+			}
+		});
+	}
+
+	/**
+	 * Determine whether the cache holds a digest for an object.
+	 * @param uid the SOPInstanceUID of the object.
+	 * @return true if an entry exists.
+	 */
+	boolean contains(String uid) {
+		return (uid != null) && (get(uid) != null);
+	}
+
+	private synchronized DigestEntry get(String uid) {
+		if (index == null) return null;
+		try { return (DigestEntry)index.get(uid); }
+		catch (Exception ex) { return null; }
+	}
+
+	private synchronized void put(String uid, DigestEntry entry) {
+		if (index == null) return;
+		try {
+			index.put(uid, entry);
+			commitIfNecessary();
+		}
+		catch (Exception ex) { logger.warn("Unable to cache the digest of "+uid); }
+		if (entry.time - lastPrune > pruneInterval) prune();
+	}
+
+	//Remove the entries that are older than the maximum age.
+	private synchronized void prune() {
+		lastPrune = System.currentTimeMillis();
+		if (index == null) return;
+		long cutoff = lastPrune - maxEntryAge;
+		try {
+			List<Object> oldKeys = new LinkedList<Object>();
+			FastIterator it = index.keys();
+			Object key;
+			while ((key = it.next()) != null) {
+				Object entry = index.get(key);
+				if (!(entry instanceof DigestEntry) || (((DigestEntry)entry).time < cutoff)) oldKeys.add(key);
+			}
+			for (Object k : oldKeys) index.remove(k);
+			recman.commit();
+			uncommitted = 0;
+			if (oldKeys.size() > 0) logger.info("Removed "+oldKeys.size()+" unused entries from the digest cache");
+		}
+		catch (Exception ex) { logger.warn("Unable to prune the digest cache", ex); }
+	}
+
+	/**
+	 * Remove the entry for an object.
+	 * @param uid the SOPInstanceUID of the object.
+	 */
+	synchronized void remove(String uid) {
+		if ((index == null) || (uid == null)) return;
+		try {
+			index.remove(uid);
+			commitIfNecessary();
+		}
+		catch (Exception ignore) { }
+	}
+
+	private void commitIfNecessary() throws Exception {
+		if (++uncommitted >= commitInterval) {
+			recman.commit();
+			uncommitted = 0;
+		}
+	}
+
+	/**
+	 * Commit and close the database.
+	 */
+	synchronized void close() {
+		background.shutdownNow();
+		if (recman != null) {
+			try {
+				recman.commit();
+				recman.close();
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to commit and close the digest cache");
+			}
+			recman = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the cache.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		return "<tr><td width=\"20%\">Digest cache hits / misses</td><td>"+hits+" / "+misses+"</td></tr>";
+	}
+
+	/**
+	 * Compute the MD5 digest of a file in one pass with bulk reads.
+	 * @param file the file.
+	 * @return the lowercase hex digest, or the empty string if the file cannot be read.
+	 */
+	static String computeDigest(File file) {
+		FileInputStream fis = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			fis = new FileInputStream(file);
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ((n = fis.read(buffer)) != -1) {
+				md.update(buffer, 0, n);
+			}
+			return bytesToHex(md.digest());
+		}
+		catch (Exception ex) { return ""; }
+		finally {
+			try { if (fis != null) fis.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	/**
+	 * Convert bytes to a lowercase hex string.
+	 * @param bytes the bytes.
+	 * @return the hex string.
+	 */
+	static String bytesToHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		int k = 0;
+		for (byte b : bytes) {
+			chars[k++] = hexChars[(b >> 4) & 0x0f];
+			chars[k++] = hexChars[b & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	static class DigestEntry implements Serializable {
+		static final long serialVersionUID = 1L;
+		public long size;
+		public String digest;
+		public long time;
+		public DigestEntry(long size, String digest) {
+			this.size = size;
+			this.digest = digest;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
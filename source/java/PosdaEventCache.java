@@ -0,0 +1,156 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded cache of Posda import event IDs, indexed by PatientID.
+ * <p>
+ * Entries expire after a configurable time and the least recently used
+ * entry is evicted when the cache is full. The cache is saved in a file in
+ * the root directory of the export service whenever an entry is added, so
+ * event IDs survive a restart. The requests for event IDs that are in
+ * progress are kept outside the lock of the cache, by PatientID, so the
+ * threads that need the same event ID wait for one request and the other
+ * threads are not held up by it.
+ */
+class PosdaEventCache {
+
+	static final Logger logger = Logger.getLogger(PosdaEventCache.class);
+
+	final File file;
+	final int maxSize;
+	final long ttl;
+	final LinkedHashMap<String,CachedEvent> map;
+	final ConcurrentHashMap<String,FutureTask<String>> requests = new ConcurrentHashMap<String,FutureTask<String>>();
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * Construct a cache, loading any unexpired entries saved by a previous instance.
+	 * @param root the directory in which the cache is saved.
+	 * @param maxSize the maximum number of PatientIDs in the cache.
+	 * @param ttl the time in ms after which an entry expires.
+	 */
+	PosdaEventCache(File root, int maxSize, long ttl) {
+		this.file = new File(root, "eventIDs.properties");
+		this.maxSize = Math.max(1, maxSize);
+		this.ttl = ttl;
+		map = new LinkedHashMap<String,CachedEvent>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,CachedEvent> eldest) {
+				return size() > PosdaEventCache.this.maxSize;
+			}
+		};
+		load();
+	}
+
+	/**
+	 * Get the event ID for a PatientID, counting a hit if it is found.
+	 * Misses are counted by countMiss when an event ID is requested.
+	 * @param patientID the PatientID.
+	 * @return the event ID, or null if there is no unexpired entry.
+	 */
+	synchronized String get(String patientID) {
+		String eventID = peek(patientID);
+		if (eventID != null) hits++;
+		return eventID;
+	}
+
+	/**
+	 * Get the event ID for a PatientID without counting a hit.
+	 * @param patientID the PatientID.
+	 * @return the event ID, or null if there is no unexpired entry.
+	 */
+	synchronized String peek(String patientID) {
+		CachedEvent event = map.get(patientID);
+		if ((event != null) && !event.isExpired()) return event.eventID;
+		if (event != null) map.remove(patientID);
+		return null;
+	}
+
+	/**
+	 * Count a miss: a request to Posda for a new event ID.
+	 */
+	synchronized void countMiss() {
+		misses++;
+	}
+
+	/**
+	 * Add an event ID to the cache and save the cache.
+	 * @param patientID the PatientID.
+	 * @param eventID the event ID obtained from Posda.
+	 */
+	synchronized void put(String patientID, String eventID) {
+		map.put(patientID, new CachedEvent(eventID, System.currentTimeMillis()));
+		save();
+	}
+
+	private void load() {
+		if (!file.exists()) return;
+		try {
+			Properties props = new Properties();
+			FileInputStream fis = new FileInputStream(file);
+			try { props.load(fis); }
+			finally { fis.close(); }
+			for (String patientID : props.stringPropertyNames()) {
+				String[] value = props.getProperty(patientID).split("\\|");
+				if (value.length == 2) {
+					CachedEvent event = new CachedEvent(value[0], Long.parseLong(value[1]));
+					if (!event.isExpired()) map.put(patientID, event);
+				}
+			}
+			logger.info("Loaded "+map.size()+" import event IDs from "+file);
+		}
+		catch (Exception ex) { logger.warn("Unable to load the import event cache from "+file); }
+	}
+
+	private void save() {
+		try {
+			Properties props = new Properties();
+			Iterator<Map.Entry<String,CachedEvent>> it = map.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String,CachedEvent> entry = it.next();
+				CachedEvent event = entry.getValue();
+				if (event.isExpired()) it.remove();
+				else props.setProperty(entry.getKey(), event.eventID + "|" + event.time);
+			}
+			File temp = new File(file.getParentFile(), file.getName() + ".partial");
+			FileOutputStream fos = new FileOutputStream(temp);
+			try { props.store(fos, "PatientID = import_event_id|time"); }
+			finally { fos.close(); }
+			file.delete();
+			temp.renameTo(file);
+		}
+		catch (Exception ex) { logger.warn("Unable to save the import event cache to "+file); }
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the cache.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		return
+			"<tr><td width=\"20%\">Import events cached</td><td>"+map.size()+" of "+maxSize+"</td></tr>"
+			+ "<tr><td width=\"20%\">Import event cache hits / misses</td><td>"+hits+" / "+misses+"</td></tr>";
+	}
+
+	class CachedEvent {
+		final String eventID;
+		final long time;
+		CachedEvent(String eventID, long time) {
+			this.eventID = eventID;
+			this.time = time;
+		}
+		boolean isExpired() {
+			return (ttl > 0) && (System.currentTimeMillis() - time > ttl);
+		}
+	}
+}
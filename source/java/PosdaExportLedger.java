@@ -0,0 +1,147 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.File;
+import java.io.Serializable;
+import jdbm.RecordManager;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * A persistent ledger of the objects acknowledged by a Posda server.
+ * <p>
+ * Each entry records the digest of an object and the time the server
+ * acknowledged it, indexed by the URL of the server and the SOPInstanceUID,
+ * so the objects acknowledged by one server are still sent to another if the
+ * URL is changed. An object whose digest matches its entry has already been
+ * imported and does not have to be sent again, for example when an export
+ * is rerun after a partial failure or a reset of the pipeline. Delete the
+ * database to force all objects to be sent again.
+ */
+class PosdaExportLedger {
+
+	static final Logger logger = Logger.getLogger(PosdaExportLedger.class);
+
+	static final int commitInterval = 100;
+
+	final File root;
+	final String server;
+	final String dbName = "__ledgerDB";
+	RecordManager recman = null;
+	HTree index = null;
+	int uncommitted = 0;
+	long skipped = 0;
+	long skippedBytes = 0;
+	long recorded = 0;
+
+	/**
+	 * Open the ledger of one server in a directory.
+	 * @param root the directory in which the database is stored.
+	 * @param server the URL of the server whose acknowledgements are recorded.
+	 */
+	PosdaExportLedger(File root, String server) {
+		this.root = root;
+		this.server = server;
+		try {
+			File indexFile = new File(root, dbName);
+			recman = JdbmUtil.getRecordManager( indexFile.getPath() );
+			index = JdbmUtil.getHTree(recman, "ackIndex");
+		}
+		catch (Exception ex) {
+			recman = null;
+			index = null;
+			logger.warn("Unable to load the export ledger.");
+		}
+	}
+
+	/**
+	 * Determine whether an object has already been acknowledged by the server
+	 * with the same digest. If it has, the object is counted as skipped.
+	 * @param uid the SOPInstanceUID of the object.
+	 * @param digest the digest of the object.
+	 * @param size the size of the object, for the skip count.
+	 * @return true if the object does not have to be sent.
+	 */
+	synchronized boolean isAcknowledged(String uid, String digest, long size) {
+		if ((index == null) || (uid == null) || uid.equals("")) return false;
+		try {
+			LedgerEntry entry = (LedgerEntry)index.get(getKey(uid));
+			if ((entry != null) && entry.digest.equals(digest)) {
+				skipped++;
+				skippedBytes += size;
+				return true;
+			}
+		}
+		catch (Exception ignore) { }
+		return false;
+	}
+
+	/**
+	 * Record the acknowledgement of an object by the server.
+	 * @param uid the SOPInstanceUID of the object.
+	 * @param digest the digest of the object.
+	 */
+	synchronized void record(String uid, String digest) {
+		if ((index == null) || (uid == null) || uid.equals("") || (digest == null)) return;
+		try {
+			index.put(getKey(uid), new LedgerEntry(digest, System.currentTimeMillis()));
+			recorded++;
+			if (++uncommitted >= commitInterval) {
+				recman.commit();
+				uncommitted = 0;
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to record the acknowledgement of "+uid); }
+	}
+
+	private String getKey(String uid) {
+		return server + " " + uid;
+	}
+
+	/**
+	 * Reset the counts for a new run of the export.
+	 */
+	synchronized void resetCounts() {
+		skipped = 0;
+		skippedBytes = 0;
+		recorded = 0;
+	}
+
+	/**
+	 * Commit and close the database.
+	 */
+	synchronized void close() {
+		if (recman != null) {
+			try {
+				recman.commit();
+				recman.close();
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to commit and close the export ledger");
+			}
+			recman = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * Get HTML table rows displaying the status of the ledger.
+	 * @return HTML table rows.
+	 */
+	synchronized String getStatusRows() {
+		return
+			"<tr><td width=\"20%\">Acknowledged objects recorded</td><td>"+recorded+"</td></tr>"
+			+ "<tr><td width=\"20%\">Objects skipped (already acknowledged)</td><td>"
+						+skipped+" ("+(skippedBytes/(1024*1024))+" MB)</td></tr>";
+	}
+
+	static class LedgerEntry implements Serializable {
+		static final long serialVersionUID = 1L;
+		public String digest;
+		public long ackTime;
+		public LedgerEntry(String digest, long ackTime) {
+			this.digest = digest;
+			this.ackTime = ackTime;
+		}
+	}
+}
@@ -2,18 +2,40 @@ package org.rsna.ctp.stdstages;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import edu.uams.tcia.DicomHeader;
 import org.apache.log4j.Logger;
-import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
 import org.rsna.ctp.pipeline.QueueManager;
@@ -25,8 +47,6 @@ import org.rsna.util.HttpUtil;
 import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Element;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 
 /**
  * An ExportService that exports files via the HTTP or HTTPS protocols to Posda sites.
@@ -36,16 +56,54 @@ public class PosdaExportService extends AbstractExportService {
 	static final Logger logger = Logger.getLogger(PosdaExportService.class);
 
 	static final int oneSecond = 1000;
-	final int connectionTimeout = 20 * oneSecond;
-	final int readTimeout = 120 * oneSecond;
+	int connectionTimeout = 20 * oneSecond;
+	int readTimeout = 120 * oneSecond;
+	static final long idleInterval = oneSecond;
+	static final int workerQueueCapacity = 2;
+	static final long batchWait = 100;
+	//Transfer syntaxes whose pixel data is already compressed:
+	//JPEG family, RLE, and deflated explicit VR little endian.
+	static final String[] compressedSyntaxes = {
+		"1.2.840.10008.1.2.4.", "1.2.840.10008.1.2.5", "1.2.840.10008.1.2.1.99"
+	};
+	static final Pattern uploadIDPattern = Pattern.compile("\"upload_id\"\\s*:\\s*\"([^\"]+)\"");
+	static final Pattern offsetPattern = Pattern.compile("\"offset\"\\s*:\\s*(\\d+)");
+	static final int conflict = 409;
+	static final int maxChunkAttempts = 3;
+	static final Pattern batchEntryPattern =
+		Pattern.compile("\"name\"\\s*:\\s*\"([^\"]+)\"\\s*,\\s*\"status\"\\s*:\\s*\"([a-z]+)\"");
 
 	String url;
 	String apikey;
 	String protocol;
 	String contentType = "application/x-mirc";
 	boolean logUnauthorizedResponses = true;
-	String lastPatientID = null;
-	String eventID = "0";
+	PosdaEventCache eventCache = null;
+	PosdaConnectionPool pool = null;
+	PosdaDigestCache digestCache = null;
+	PosdaExportLedger ledger = null;
+	PosdaConcurrencyLimiter limiter = null;
+	PosdaBandwidthLimiter bandwidth = null;
+	PosdaRetryScheduler retryScheduler = null;
+	PosdaPriorityLanes lanes = null;
+	PosdaCircuitBreaker breaker = null;
+	int workerCount = 1;
+	boolean batchMode = false;
+	int batchCount = 100;
+	long batchSize = 64L * 1024 * 1024;
+	String compression = "none";
+	long chunkSize = 0;
+	long chunkThreshold = 0;
+	final AtomicLong uploadsResumed = new AtomicLong(0);
+	final AtomicLong bytesResumed = new AtomicLong(0);
+	final AtomicLong bytesRead = new AtomicLong(0);
+	final AtomicLong bytesSent = new AtomicLong(0);
+	ExportWorker[] workers = null;
+	ExportDispatcher dispatcher = null;
+	LinkedBlockingQueue<ExportItem> work = null;
+	final Object batchLock = new Object();
+	final AtomicInteger activeCount = new AtomicInteger(0);
+	volatile boolean stopped = false;
 
 	/**
 	 * Class constructor; creates a new instance of the ExportService.
@@ -60,6 +118,186 @@ public class PosdaExportService extends AbstractExportService {
 		apikey = element.getAttribute("apikey").trim();
 		logger.info(name+": url: "+url);
 		logger.info(name+": apikey: \""+apikey+"\"");
+
+		//Get the timeouts
+		connectionTimeout = StringUtil.getInt(element.getAttribute("connectionTimeout").trim(), 20) * oneSecond;
+		readTimeout = StringUtil.getInt(element.getAttribute("readTimeout").trim(), 120) * oneSecond;
+
+		//Get the number of export workers
+		workerCount = Math.max(1, StringUtil.getInt(element.getAttribute("workers").trim(), 1));
+		logger.info(name+": workers: "+workerCount);
+
+		//Set up the connection pool, if requested, with
+		//at least one connection for each worker
+		if (element.getAttribute("pooled").trim().equals("yes")) {
+			int maxConnections = StringUtil.getInt(element.getAttribute("maxConnections").trim(), 4);
+			maxConnections = Math.max(maxConnections, workerCount);
+			int tlsSessionTimeout = StringUtil.getInt(element.getAttribute("tlsSessionTimeout").trim(), 3600);
+			pool = new PosdaConnectionPool(maxConnections, tlsSessionTimeout);
+			logger.info(name+": connection pool: maxConnections="+maxConnections);
+		}
+
+		//Set up the import event cache
+		int eventCacheSize = StringUtil.getInt(element.getAttribute("eventCacheSize").trim(), 1000);
+		int eventCacheTTL = StringUtil.getInt(element.getAttribute("eventCacheTTL").trim(), 3600);
+		eventCache = new PosdaEventCache(root, eventCacheSize, eventCacheTTL * (long)oneSecond);
+
+		//Set up the digest cache unless it is disabled
+		if (!element.getAttribute("digestCache").trim().equals("no")) {
+			digestCache = new PosdaDigestCache(root);
+		}
+
+		//Set up the ledger of acknowledged objects unless it is disabled
+		if (!element.getAttribute("ledger").trim().equals("no")) {
+			ledger = new PosdaExportLedger(root, url);
+		}
+
+		//Get the batch parameters
+		batchMode = element.getAttribute("batch").trim().equals("yes");
+		if (batchMode) {
+			batchCount = Math.max(1, StringUtil.getInt(element.getAttribute("batchCount").trim(), 100));
+			batchSize = Math.max(1, StringUtil.getInt(element.getAttribute("batchSize").trim(), 64)) * 1024L * 1024L;
+			logger.info(name+": batch mode: batchCount="+batchCount+"; batchSize="+(batchSize/(1024*1024))+"MB");
+		}
+
+		//Get the compression method for uploads
+		compression = element.getAttribute("compression").trim().toLowerCase();
+		if (!compression.equals("gzip") && !compression.equals("deflate")) compression = "none";
+		logger.info(name+": compression: "+compression);
+
+		//Set up the priority lanes unless they are disabled
+		if (!element.getAttribute("lanes").trim().equals("no")) {
+			long smallObjectSize = Math.max(0, StringUtil.getInt(element.getAttribute("smallObjectSize").trim(), 512)) * 1024L;
+			int priorityBurst = StringUtil.getInt(element.getAttribute("priorityBurst").trim(), 8);
+			lanes = new PosdaPriorityLanes(root, getQueueManager(), smallObjectSize, priorityBurst);
+		}
+
+		//Set up the retry scheduler and the circuit breaker
+		long retryDelay = StringUtil.getInt(element.getAttribute("retryDelay").trim(), 10) * (long)oneSecond;
+		long maxRetryDelay = StringUtil.getInt(element.getAttribute("maxRetryDelay").trim(), 3600) * (long)oneSecond;
+		retryScheduler = new PosdaRetryScheduler(new File(root, "retry"), retryDelay, maxRetryDelay);
+		int breakerThreshold = StringUtil.getInt(element.getAttribute("breakerThreshold").trim(), 5);
+		long probeInterval = StringUtil.getInt(element.getAttribute("probeInterval").trim(), 30) * (long)oneSecond;
+		breaker = new PosdaCircuitBreaker(name, breakerThreshold, probeInterval);
+
+		//Get the chunked upload parameters, if chunking is enabled
+		if (element.getAttribute("chunked").trim().equals("yes")) {
+			chunkSize = Math.max(1, StringUtil.getInt(element.getAttribute("chunkSize").trim(), 8)) * 1024L * 1024L;
+			chunkThreshold = Math.max(0, StringUtil.getInt(element.getAttribute("chunkThreshold").trim(), 64)) * 1024L * 1024L;
+			logger.info(name+": chunked upload: chunkSize="+(chunkSize/(1024*1024))+"MB; chunkThreshold="+(chunkThreshold/(1024*1024))+"MB");
+		}
+
+		//Set up the bandwidth schedule, if one is specified
+		String schedule = element.getAttribute("bandwidth").trim();
+		if (!schedule.equals("")) {
+			bandwidth = new PosdaBandwidthLimiter(schedule);
+			if (!bandwidth.isLimited()) bandwidth = null;
+			logger.info(name+": bandwidth schedule: "+schedule);
+		}
+
+		//Set up the adaptive concurrency limit, unless it is disabled
+		if (!element.getAttribute("adaptive").trim().equals("no")) {
+			int latencyTarget = StringUtil.getInt(element.getAttribute("latencyTarget").trim(), 10);
+			limiter = new PosdaConcurrencyLimiter(workerCount, latencyTarget * (long)oneSecond);
+		}
+	}
+
+	/**
+	 * Start the export workers and the dispatcher that feeds them.
+	 * This replaces the single exporter thread of the superclass.
+	 */
+	public synchronized void start() {
+		stopped = false;
+		if (ledger != null) ledger.resetCounts();
+		retryScheduler.start();
+		work = new LinkedBlockingQueue<ExportItem>(workerCount * workerQueueCapacity);
+		workers = new ExportWorker[workerCount];
+		for (int i=0; i<workerCount; i++) {
+			workers[i] = new ExportWorker(i);
+			workers[i].start();
+		}
+		dispatcher = new ExportDispatcher();
+		dispatcher.start();
+	}
+
+	/**
+	 * Stop the dispatcher and the workers, returning any files
+	 * that have been handed to a worker but not exported to the queue.
+	 */
+	public synchronized void shutdown() {
+		stopped = true;
+		if (dispatcher != null) dispatcher.interrupt();
+		if (workers != null) {
+			//Interrupt all the workers, then give them one read timeout in all to finish
+			for (ExportWorker worker : workers) worker.interrupt();
+			long deadline = System.currentTimeMillis() + readTimeout;
+			for (ExportWorker worker : workers) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) break;
+				try { worker.join(wait); }
+				catch (Exception ignore) { }
+			}
+			ExportItem item;
+			while ((item = work.poll()) != null) {
+				activeCount.decrementAndGet();
+				requeue(item.file);
+			}
+		}
+		retryScheduler.stop();
+		if (digestCache != null) digestCache.close();
+		if (ledger != null) ledger.close();
+		super.shutdown();
+	}
+
+	/**
+	 * Queue an object for export, in the lane for its priority class
+	 * if priority lanes are enabled. Objects that the stage does not
+	 * accept are ignored, as in every lane. The digest of the queued copy
+	 * is computed in the background, after all the other stages of the
+	 * pipeline have run and without holding up the pipeline, so the export
+	 * thread usually only has to stream the file.
+	 * @param fileObject the object to export.
+	 */
+	public synchronized void export(FileObject fileObject) {
+		if (!acceptable(fileObject)) return;
+		File file = fileObject.getFile();
+		QueueManager queue = (lanes != null) ? lanes.getQueue(lanes.classify(fileObject)) : getQueueManager();
+		File queuedFile = queue.enqueue(file);
+		if (queuedFile != null) {
+			if (digestCache != null) digestCache.putLater(queuedFile, fileObject.getSOPInstanceUID());
+			lastFileIn = file;
+			lastTimeIn = System.currentTimeMillis();
+		}
+		else logger.warn(name+": Unable to queue "+file);
+	}
+
+	/**
+	 * Get the number of files waiting in the queue, including all lanes.
+	 * @return the number of files.
+	 */
+	public synchronized int getQueueSize() {
+		if (lanes == null) return super.getQueueSize();
+		int[] sizes = lanes.getSizes();
+		return sizes[PosdaPriorityLanes.CONTROL] + sizes[PosdaPriorityLanes.SMALL] + super.getQueueSize();
+	}
+
+	/**
+	 * Get the number of files waiting in each priority lane.
+	 * @return the sizes of the control, small, and bulk lanes; if lanes
+	 * are disabled, all files are counted in the bulk lane.
+	 */
+	public int[] getLaneSizes() {
+		if (lanes != null) return lanes.getSizes();
+		return new int[] { 0, 0, getQueueManager().size() };
+	}
+
+	/**
+	 * Get the number of files that have been removed from the queue
+	 * but have not yet been completed, including files waiting for retry.
+	 * @return the number of files in process.
+	 */
+	public int getActiveCount() {
+		return activeCount.get() + retryScheduler.getDelayedCount();
 	}
 	
 	/**
@@ -68,59 +306,113 @@ public class PosdaExportService extends AbstractExportService {
 	 * @return the status of the attempt to export the file.
 	 */
 	public Status export(File fileToExport) {
+		return export(fileToExport, DicomHeader.getInstance(fileToExport));
+	}
+
+	/**
+	 * Export a file whose header has already been read.
+	 * @param fileToExport the file to export.
+	 * @param header the header of the file, or null if the file is not a DICOM object.
+	 * @return the status of the attempt to export the file.
+	 */
+	Status export(File fileToExport, DicomHeader header) {
 		
 		//Do not export zero-length files
 		long fileLength = fileToExport.length();
-		if (fileLength == 0) return Status.FAIL;
+		if (fileLength == 0) {
+			if ((digestCache != null) && (header != null)) digestCache.remove(header.getSOPInstanceUID());
+			return Status.FAIL;
+		}
 		
 		HttpURLConnection conn = null;
 		OutputStream svros = null;
+		long startTime = -1;
 		try {
-			FileObject fileObject = FileObject.getInstance( fileToExport );
-			String patientID = fileObject.getPatientID();
-			if ((patientID == null) || patientID.trim().equals("")) {
-				logger.debug("PatientID null or blank");
-				logger.debug("...Object instance: "+fileObject.getClass().getName());
-				logger.debug("...PatientID = \""+patientID+"\"");
-				logger.debug("...replacing with UNKNOWN");
-				patientID = "UNKNOWN";
-			}
-			if ((lastPatientID == null) || !patientID.equals(lastPatientID)) {
-				logger.debug("Requesting new eventID");
-				logger.debug("...lastPatientID = \""+lastPatientID+"\"");
-				logger.debug("...patientID = \""+patientID+"\"");
-				lastPatientID = patientID;
-				eventID = getImportEventID(patientID);
-				logger.debug("...new eventID = "+eventID);
-			}
-
-			String hash = getDigest(fileToExport).toLowerCase();
+			String uid = (header != null) ? header.getSOPInstanceUID() : null;
+			boolean cachedDigest = (digestCache != null) && digestCache.contains(uid);
+			String hash = (digestCache != null) ? digestCache.getDigest(fileToExport, uid) : getDigest(fileToExport);
+
+			//Skip the object if the server already has it
+			if ((ledger != null) && ledger.isAcknowledged(uid, hash, fileLength)) {
+				logger.debug("Already acknowledged: "+uid);
+				if (digestCache != null) digestCache.remove(uid);
+				return Status.OK;
+			}
+
+			String patientID = getPatientID(header);
+			String eventID = getEventID(patientID);
+
+			//Send large objects in chunks so a failed upload can be resumed
+			if ((chunkSize > 0) && (fileLength > chunkThreshold)) {
+				Status result = exportChunked(fileToExport, fileLength, hash, eventID);
+				if (result.equals(Status.FAIL) && cachedDigest) {
+					logger.warn("Digest mismatch for: " + fileToExport + " (cached digest discarded)");
+					digestCache.remove(uid);
+					result = Status.RETRY;
+				}
+				else if (result.equals(Status.OK)) {
+					if (digestCache != null) digestCache.remove(uid);
+					if (ledger != null) ledger.record(uid, hash);
+				}
+				else if (result.equals(Status.FAIL) && (digestCache != null)) digestCache.remove(uid);
+				return result;
+			}
+
 			String query = "?import_event_id="+eventID+"&digest="+hash;
 			if (!apikey.equals("")) query += "&apikey="+apikey;
 			URL u = new URL(getURL() + query);
 			logger.debug("Export URL: "+u.toString());
 			
+			//Wait for room in the concurrency window
+			startTime = (limiter != null) ? limiter.acquire() : System.currentTimeMillis();
+
 			//Establish the connection
-			conn = HttpUtil.getConnection(u);
-			conn.setReadTimeout(connectionTimeout);
-			conn.setConnectTimeout(readTimeout);
+			conn = getConnection(u);
 			conn.setRequestMethod("PUT");
+			boolean compress = !compression.equals("none") && isCompressible(header);
+			if (compress) {
+				//The compressed length is not known in advance
+				conn.setRequestProperty("Content-Encoding", compression);
+				conn.setChunkedStreamingMode(PosdaDigestCache.bufferSize);
+			}
+			//Declare the length so the body is streamed rather than buffered on the heap
+			else conn.setFixedLengthStreamingMode(fileLength);
 			conn.connect();
 
 			//Send the file to the server
-			svros = conn.getOutputStream();
-			FileUtil.streamFile(fileToExport, svros);
+			CountingOutputStream counter = new CountingOutputStream(getOutputStream(conn));
+			svros = counter;
+			if (compress) {
+				svros = compression.equals("gzip")
+							? new GZIPOutputStream(counter, PosdaDigestCache.bufferSize)
+							: new DeflaterOutputStream(counter, new Deflater(Deflater.BEST_SPEED), PosdaDigestCache.bufferSize);
+			}
+			copy(fileToExport, svros);
+			svros.close();
+			startTime = System.currentTimeMillis();
+			bytesRead.addAndGet(fileLength);
+			bytesSent.addAndGet(counter.count);
 
 			//Get the response
 			Status result = Status.OK;
 			int responseCode = conn.getResponseCode();
+			startTime = recordOutcome(startTime, responseCode);
 			String responseText = "";
 			try { responseText = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false ); }
 			catch (Exception ex) { logger.warn("Unable to read response: "+ex.getMessage()); }
-			conn.disconnect();
-			if (responseCode == HttpResponse.unprocessable) {
+			releaseConnection(conn, true);
+			conn = null;
+			if ((responseCode == HttpResponse.unprocessable) && cachedDigest) {
+				//The cached digest may be stale if the object was changed
+				//by the export pipeline; drop it and compute it next time.
+				logger.warn("Unprocessable response from server for: " + fileToExport + " (cached digest discarded)");
+				digestCache.remove(uid);
+				result = Status.RETRY;
+			}
+			else if (responseCode == HttpResponse.unprocessable) {
 				logger.warn("Unprocessable response from server for: " + fileToExport);
 				logger.warn("Response text: "+responseText);
+				if (digestCache != null) digestCache.remove(uid);
 				result = Status.FAIL;
 			}
 			else if (responseCode != HttpResponse.ok) {
@@ -128,43 +420,632 @@ public class PosdaExportService extends AbstractExportService {
 				logger.warn("Response text: "+responseText);
 				result = Status.RETRY;
 			}
-			conn.disconnect();
+			else {
+				if (digestCache != null) digestCache.remove(uid);
+				if (ledger != null) ledger.record(uid, hash);
+			}
 			return result;
 		}
 		catch (Exception e) {
+			recordFailure(startTime, e);
+			releaseConnection(conn, false);
 			if (logger.isDebugEnabled()) logger.debug(name+": export failed: " + e.getMessage(), e);
 			else logger.warn(name+": export failed: " + e.getMessage());
-			return logger.isDebugEnabled() ? Status.FAIL : Status.RETRY;
+			return Status.RETRY;
+		}
+	}
+	
+	//Get the import event ID for a patient, from the cache if possible.
+	private String getEventID(String patientID) {
+		return getEventID(eventCache, url, apikey, patientID);
+	}
+
+	//Get the import event ID for a patient from a server, from a cache if possible.
+	//Failures (event ID 0) are not cached, so they are retried next time.
+	//Workers exporting objects of the same patient share one request, and
+	//the cache is not locked while it is in progress, so workers exporting
+	//objects of other patients are not held up by it.
+	String getEventID(final PosdaEventCache cache, final String baseURL, final String key, final String patientID) {
+		String eventID = cache.get(patientID);
+		if (eventID != null) return eventID;
+		FutureTask<String> request = new FutureTask<String>(
+			new Callable<String>() {
+				public String call() {
+					//Another worker may have just finished a request
+					String eventID = cache.peek(patientID);
+					if (eventID != null) return eventID;
+					cache.countMiss();
+					logger.debug("Requesting new eventID");
+					logger.debug("...patientID = \""+patientID+"\"");
+					eventID = getImportEventID(getEventIDRequestURL(baseURL, key, patientID));
+					logger.debug("...new eventID = "+eventID);
+					if (!eventID.equals("0")) cache.put(patientID, eventID);
+					return eventID;
+				}
+			});
+		FutureTask<String> inProgress = cache.requests.putIfAbsent(patientID, request);
+		if (inProgress == null) {
+			try { request.run(); }
+			finally { cache.requests.remove(patientID, request); }
+			inProgress = request;
+		}
+		try { return inProgress.get(); }
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return "0";
+		}
+		catch (Exception ex) { return "0"; }
+	}
+
+	String getPatientID(DicomHeader header) {
+		String patientID = (header != null) ? header.getPatientID() : null;
+		if ((patientID == null) || patientID.trim().equals("")) {
+			logger.debug("PatientID null or blank");
+			logger.debug("...DICOM object: "+(header != null));
+			logger.debug("...PatientID = \""+patientID+"\"");
+			logger.debug("...replacing with UNKNOWN");
+			patientID = "UNKNOWN";
+		}
+		return patientID;
+	}
+
+	//Dispose of a file according to the result of its export.
+	private void complete(File file, Status status) {
+		if (status.equals(Status.FAIL)) {
+			logger.warn(name+": Unable to export "+file);
+			if (quarantine != null) quarantine.insert(file);
+			else file.delete();
+		}
+		else if (status.equals(Status.RETRY)) {
+			if (!retryScheduler.schedule(file, true)) requeue(file);
+		}
+		else {
+			lastFileOut = file;
+			lastTimeOut = System.currentTimeMillis();
+			release(file);
+		}
+	}
+
+	//Put a file back at the end of the queue. Enqueuing
+	//copies the file, so the original is deleted here.
+	private void requeue(File file) {
+		QueueManager queue = getQueueManager();
+		if (lanes != null) queue = lanes.getQueue(lanes.classify(DicomHeader.getInstance(file), file));
+		queue.enqueue(file);
+		file.delete();
+	}
+
+	/**
+	 * The thread that removes files from the retry scheduler or the queue
+	 * and puts them in the work queue shared by the workers. Any idle worker
+	 * takes the next file, so the objects of one patient are exported by all
+	 * the workers; the dispatcher only waits when every worker is busy and
+	 * the work queue is full.
+	 */
+	class ExportDispatcher extends Thread {
+		public ExportDispatcher() {
+			super(name + " - dispatcher");
+		}
+		public void run() {
+			logger.info(getName()+": Started");
+			while (!stopped && !isInterrupted()) {
+				File file = null;
+				try {
+					//While the destination is down, leave everything where it is.
+					if (!breaker.allowRequest()) {
+						sleep(idleInterval);
+						continue;
+					}
+					//Files due for retry go ahead of the queue,
+					//then the control and small lanes.
+					file = retryScheduler.poll();
+					if ((file == null) && (lanes != null)) file = lanes.next();
+					if (file == null) file = getNextFile();
+					if (file == null) {
+						sleep(idleInterval);
+						continue;
+					}
+					activeCount.incrementAndGet();
+					work.put( new ExportItem(file, DicomHeader.getInstance(file)) );
+					file = null;
+				}
+				catch (InterruptedException quit) { break; }
+				catch (Exception ex) {
+					logger.warn(getName()+": Unable to dispatch "+file, ex);
+				}
+				finally {
+					if (file != null) {
+						activeCount.decrementAndGet();
+						requeue(file);
+					}
+				}
+			}
+			logger.info(getName()+": Interrupted");
+		}
+	}
+
+	/**
+	 * A thread that exports the files in the shared work queue.
+	 * In batch mode, consecutive files of the same series are collected
+	 * and sent to Posda in a single request; one worker at a time collects
+	 * a batch, so the files of a series are not scattered among the workers.
+	 */
+	class ExportWorker extends Thread {
+		ExportItem pending = null;
+		public ExportWorker(int index) {
+			super(name + " - worker " + index);
+		}
+		public void run() {
+			logger.info(getName()+": Started");
+			while (!stopped && !isInterrupted()) {
+				try {
+					ExportItem item = pending;
+					pending = null;
+					List<ExportItem> batch = null;
+					if (batchMode) {
+						synchronized (batchLock) {
+							if (item == null) item = work.poll(idleInterval, TimeUnit.MILLISECONDS);
+							if ((item != null) && (item.seriesUID != null) && !breaker.isOpen()) {
+								batch = collectBatch(item);
+							}
+						}
+					}
+					else if (item == null) item = work.poll(idleInterval, TimeUnit.MILLISECONDS);
+					if (item == null) continue;
+					if (batch != null) exportBatch(batch);
+					else if (breaker.isOpen()) defer(item);
+					else exportItem(item);
+				}
+				catch (InterruptedException quit) { break; }
+				catch (Exception ex) {
+					logger.warn(getName()+": Exception while exporting", ex);
+				}
+			}
+			if (pending != null) {
+				activeCount.decrementAndGet();
+				requeue(pending.file);
+				pending = null;
+			}
+			logger.info(getName()+": Interrupted");
+		}
+
+		//Export one file.
+		private void exportItem(ExportItem item) {
+			Status status = Status.RETRY;
+			try { status = export(item.file, item.header); }
+			finally {
+				complete(item.file, status);
+				activeCount.decrementAndGet();
+			}
+		}
+
+		//Put a file aside without trying it, because the destination is down.
+		private void defer(ExportItem item) {
+			if (!retryScheduler.schedule(item.file, false)) requeue(item.file);
+			activeCount.decrementAndGet();
+		}
+
+		//Collect the files of one series, up to the batch limits.
+		//A file from a different series is held for the next batch.
+		//If the worker is interrupted, the files already collected
+		//are returned so they are not lost.
+		private List<ExportItem> collectBatch(ExportItem first) {
+			List<ExportItem> batch = new LinkedList<ExportItem>();
+			batch.add(first);
+			long size = first.file.length();
+			while ((batch.size() < batchCount) && (size < batchSize)) {
+				ExportItem next;
+				try { next = work.poll(batchWait, TimeUnit.MILLISECONDS); }
+				catch (InterruptedException quit) {
+					interrupt();
+					break;
+				}
+				if (next == null) break;
+				if (!first.seriesUID.equals(next.seriesUID)) {
+					pending = next;
+					break;
+				}
+				batch.add(next);
+				size += next.file.length();
+			}
+			return batch;
+		}
+
+		//Export a batch.
+		private void exportBatch(List<ExportItem> batch) {
+			if (batch.size() == 1) {
+				exportItem(batch.get(0));
+				return;
+			}
+			Status[] results = export(batch);
+			int i = 0;
+			for (ExportItem item : batch) {
+				complete(item.file, results[i++]);
+				activeCount.decrementAndGet();
+			}
+		}
+	}
+
+	static class ExportItem {
+		final File file;
+		final DicomHeader header;
+		final String seriesUID;
+		public ExportItem(File file, DicomHeader header) {
+			this.file = file;
+			this.header = header;
+			this.seriesUID = (header != null) ? header.getSeriesInstanceUID() : null;
+		}
+	}
+
+	/**
+	 * Export a batch of files of one series in a single request. The files
+	 * are sent as a zip archive whose first entry, manifest.txt, lists the
+	 * name and MD5 digest of each of the other entries. The server responds
+	 * with a status (ok, retry, or fail) for each entry.
+	 * @param batch the files to export, all from the same series.
+	 * @return the status of each file, in the order of the batch.
+	 */
+	Status[] export(List<ExportItem> batch) {
+		int n = batch.size();
+		Status[] results = new Status[n];
+		Arrays.fill(results, Status.RETRY);
+		String[] names = new String[n];
+		String[] uids = new String[n];
+		String[] hashes = new String[n];
+		boolean[] sent = new boolean[n];
+		HttpURLConnection conn = null;
+		long startTime = -1;
+		try {
+			//Make the manifest, failing any zero-length files
+			//and skipping any that the server already has.
+			StringBuffer manifest = new StringBuffer();
+			int count = 0;
+			int i = 0;
+			for (ExportItem item : batch) {
+				names[i] = String.format("%05d.dcm", i);
+				uids[i] = item.header.getSOPInstanceUID();
+				long length = item.file.length();
+				if (length == 0) {
+					if (digestCache != null) digestCache.remove(uids[i]);
+					results[i] = Status.FAIL;
+				}
+				else {
+					hashes[i] = (digestCache != null) ? digestCache.getDigest(item.file, uids[i]) : getDigest(item.file);
+					if ((ledger != null) && ledger.isAcknowledged(uids[i], hashes[i], length)) {
+						if (digestCache != null) digestCache.remove(uids[i]);
+						results[i] = Status.OK;
+					}
+					else {
+						manifest.append(names[i] + " " + hashes[i] + "\n");
+						sent[i] = true;
+						count++;
+					}
+				}
+				i++;
+			}
+			if (count == 0) return results;
+			String eventID = getEventID(getPatientID(batch.get(0).header));
+
+			String query = "?import_event_id="+eventID;
+			if (!apikey.equals("")) query += "&apikey="+apikey;
+			URL u = new URL(getBatchURL() + query);
+			logger.debug("Batch export URL: "+u.toString()+" ("+count+" files)");
+
+			//Wait for room in the concurrency window
+			startTime = (limiter != null) ? limiter.acquire() : System.currentTimeMillis();
+
+			//Establish the connection, streaming the body in chunks
+			//because the length of the archive is not known in advance.
+			conn = getConnection(u);
+			conn.setRequestMethod("PUT");
+			conn.setRequestProperty("Content-Type", "application/zip");
+			conn.setChunkedStreamingMode(PosdaDigestCache.bufferSize);
+			conn.connect();
+
+			//Send the archive. If compression is enabled, the entries
+			//that are not already compressed are deflated.
+			CountingOutputStream counter = new CountingOutputStream(getOutputStream(conn));
+			ZipOutputStream zos = new ZipOutputStream(counter);
+			zos.setLevel(Deflater.NO_COMPRESSION);
+			zos.putNextEntry(new ZipEntry("manifest.txt"));
+			zos.write(manifest.toString().getBytes("UTF-8"));
+			zos.closeEntry();
+			long length = 0;
+			i = 0;
+			for (ExportItem item : batch) {
+				if (sent[i]) {
+					boolean compress = !compression.equals("none") && isCompressible(item.header);
+					zos.setLevel(compress ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+					zos.putNextEntry(new ZipEntry(names[i]));
+					copy(item.file, zos);
+					zos.closeEntry();
+					length += item.file.length();
+				}
+				i++;
+			}
+			zos.close();
+			startTime = System.currentTimeMillis();
+			bytesRead.addAndGet(length);
+			bytesSent.addAndGet(counter.count);
+
+			//Get the response
+			int responseCode = conn.getResponseCode();
+			startTime = recordOutcome(startTime, responseCode);
+			String responseText = "";
+			try { responseText = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false ); }
+			catch (Exception ex) { logger.warn("Unable to read response: "+ex.getMessage()); }
+			releaseConnection(conn, true);
+			conn = null;
+			if (responseCode != HttpResponse.ok) {
+				logger.warn("Failure response from server ("+responseCode+") for batch of "+count+" files");
+				logger.warn("Response text: "+responseText);
+				return results;
+			}
+
+			//Map the entry results back to the files. Entries
+			//missing from the response are retried.
+			Hashtable<String,String> entryStatus = new Hashtable<String,String>();
+			Matcher matcher = batchEntryPattern.matcher(responseText);
+			while (matcher.find()) entryStatus.put(matcher.group(1), matcher.group(2));
+			for (i=0; i<n; i++) {
+				if (!sent[i]) continue;
+				String status = entryStatus.get(names[i]);
+				if ((status != null) && status.equals("ok")) {
+					results[i] = Status.OK;
+					if (digestCache != null) digestCache.remove(uids[i]);
+					if (ledger != null) ledger.record(uids[i], hashes[i]);
+				}
+				else if ((status != null) && status.equals("fail")) {
+					logger.warn("Server rejected "+batch.get(i).file+" in batch");
+					if (digestCache != null) digestCache.remove(uids[i]);
+					results[i] = Status.FAIL;
+				}
+				else results[i] = Status.RETRY;
+			}
+			return results;
+		}
+		catch (Exception e) {
+			recordFailure(startTime, e);
+			releaseConnection(conn, false);
+			if (logger.isDebugEnabled()) logger.debug(name+": batch export failed: " + e.getMessage(), e);
+			else logger.warn(name+": batch export failed: " + e.getMessage());
+			for (int i=0; i<n; i++) if (sent[i]) results[i] = Status.RETRY;
+			return results;
+		}
+	}
+
+	/**
+	 * Export a large file in chunks. The upload is opened with the digest
+	 * and size of the whole object; if the server already holds part of the
+	 * object from an earlier attempt, it returns the offset at which to
+	 * continue. Each chunk is then sent in its own request with its offset
+	 * and digest, and the server answers with the offset it has acknowledged.
+	 * A failed attempt therefore costs at most one chunk.
+	 * @param file the file to export.
+	 * @param fileLength the length of the file.
+	 * @param hash the digest of the whole file.
+	 * @param eventID the import event ID.
+	 * @return the status of the attempt to export the file.
+	 */
+	private Status exportChunked(File file, long fileLength, String hash, String eventID) {
+		HttpURLConnection conn = null;
+		FileChannel in = null;
+		long startTime = -1;
+		try {
+			in = new FileInputStream(file).getChannel();
+
+			//Wait for room in the concurrency window
+			startTime = (limiter != null) ? limiter.acquire() : System.currentTimeMillis();
+
+			//Open the upload, or find out how much of it the server already has
+			String key = apikey.equals("") ? "" : "&apikey="+apikey;
+			URL u = new URL(getUploadURL() + "?import_event_id="+eventID+"&digest="+hash+"&size="+fileLength + key);
+			logger.debug("Upload URL: "+u.toString());
+			conn = getConnection(u);
+			conn.setRequestMethod("PUT");
+			conn.connect();
+			int responseCode = conn.getResponseCode();
+			String responseText = getResponseText(conn, responseCode);
+			releaseConnection(conn, true);
+			conn = null;
+			if (responseCode != HttpResponse.ok) {
+				startTime = recordOutcome(startTime, responseCode);
+				logger.warn("Failure response from server ("+responseCode+") opening upload of: " + file);
+				logger.warn("Response text: "+responseText);
+				return Status.RETRY;
+			}
+			String uploadID = getMatch(uploadIDPattern, responseText);
+			long offset = Long.parseLong(getMatch(offsetPattern, responseText));
+			if (offset > 0) {
+				logger.info("Resuming upload of "+file+" at byte "+offset+" of "+fileLength);
+				uploadsResumed.incrementAndGet();
+				bytesResumed.addAndGet(offset);
+			}
+
+			//Send the chunks
+			boolean complete = (offset >= fileLength) && responseText.contains("\"status\":\"success\"");
+			int attempts = 0;
+			while (!complete) {
+				long length = Math.min(chunkSize, fileLength - offset);
+				String chunkHash = getDigest(in, offset, length);
+				u = new URL(getChunkURL() + "?upload_id="+uploadID+"&offset="+offset+"&digest="+chunkHash + key);
+				conn = getConnection(u);
+				conn.setRequestMethod("PUT");
+				conn.setFixedLengthStreamingMode(length);
+				conn.connect();
+				CountingOutputStream counter = new CountingOutputStream(getOutputStream(conn));
+				copy(in, offset, length, counter);
+				counter.close();
+				startTime = System.currentTimeMillis();
+				bytesRead.addAndGet(length);
+				bytesSent.addAndGet(counter.count);
+				responseCode = conn.getResponseCode();
+				responseText = getResponseText(conn, responseCode);
+				releaseConnection(conn, true);
+				conn = null;
+				if (responseCode == HttpResponse.unprocessable) {
+					startTime = recordOutcome(startTime, responseCode);
+					logger.warn("Unprocessable response from server for: " + file);
+					logger.warn("Response text: "+responseText);
+					return Status.FAIL;
+				}
+				if ((responseCode != HttpResponse.ok)
+						&& (responseCode != HttpResponse.badrequest) && (responseCode != conflict)) {
+					startTime = recordOutcome(startTime, responseCode);
+					logger.warn("Failure response from server ("+responseCode+") for chunk at "+offset+" of: " + file);
+					logger.warn("Response text: "+responseText);
+					return Status.RETRY;
+				}
+
+				//The server returns the offset it holds, even if it
+				//rejected the chunk (400) or expected another offset (409).
+				long next = Long.parseLong(getMatch(offsetPattern, responseText));
+				if (next > offset) attempts = 0;
+				else if (++attempts >= maxChunkAttempts) {
+					startTime = recordOutcome(startTime, responseCode);
+					logger.warn("No progress uploading chunk at "+offset+" of: " + file);
+					return Status.RETRY;
+				}
+				offset = next;
+				complete = (offset >= fileLength) && responseText.contains("\"status\":\"success\"");
+			}
+			recordOutcome(startTime, HttpResponse.ok);
+			return Status.OK;
+		}
+		catch (Exception e) {
+			recordFailure(startTime, e);
+			releaseConnection(conn, false);
+			if (logger.isDebugEnabled()) logger.debug(name+": chunked export failed: " + e.getMessage(), e);
+			else logger.warn(name+": chunked export failed: " + e.getMessage());
+			return Status.RETRY;
+		}
+		finally {
+			if (in != null) {
+				try { in.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	//Get the text of a response, which is in the error stream for 4xx and 5xx responses.
+	static String getResponseText(HttpURLConnection conn, int responseCode) {
+		try {
+			InputStream is = (responseCode >= 400) ? conn.getErrorStream() : conn.getInputStream();
+			return (is != null) ? FileUtil.getTextOrException( is, FileUtil.utf8, false ) : "";
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to read response: "+ex.getMessage());
+			return "";
+		}
+	}
+
+	private static String getMatch(Pattern pattern, String text) throws Exception {
+		Matcher matcher = pattern.matcher(text);
+		if (!matcher.find()) throw new Exception("Unexpected response: "+text);
+		return matcher.group(1);
+	}
+
+	//Compute the digest of part of a file.
+	private static String getDigest(FileChannel in, long offset, long length) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		ByteBuffer buffer = ByteBuffer.allocate(PosdaDigestCache.bufferSize);
+		long end = offset + length;
+		while (offset < end) {
+			buffer.clear();
+			if (end - offset < buffer.capacity()) buffer.limit((int)(end - offset));
+			int n = in.read(buffer, offset);
+			if (n < 0) throw new EOFException();
+			md.update(buffer.array(), 0, n);
+			offset += n;
+		}
+		return bytesToHex(md.digest());
+	}
+
+	//Copy part of a file to a stream without closing the stream.
+	private static void copy(FileChannel in, long offset, long length, OutputStream out) throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		long end = offset + length;
+		while (offset < end) {
+			offset += in.transferTo(offset, end - offset, channel);
 		}
 	}
+
+	//Get the stream for the body of a request, limiting
+	//its bandwidth if a schedule is configured.
+	OutputStream getOutputStream(HttpURLConnection conn) throws IOException {
+		OutputStream out = conn.getOutputStream();
+		return (bandwidth != null) ? bandwidth.wrap(out) : out;
+	}
+
+	//Determine whether an object is worth compressing. DICOM objects
+	//with compressed transfer syntaxes gain almost nothing.
+	static boolean isCompressible(DicomHeader header) {
+		if (header == null) return true;
+		String syntax = header.getTransferSyntaxUID();
+		for (String prefix : compressedSyntaxes) {
+			if (syntax.startsWith(prefix)) return false;
+		}
+		return true;
+	}
+
+	//Copy a file to a stream without closing the stream. The file is
+	//sent with channel transfers, which use a small fixed buffer, so
+	//the memory used does not depend on the size of the file.
+	private static void copy(File file, OutputStream out) throws IOException {
+		FileChannel in = new FileInputStream(file).getChannel();
+		try {
+			WritableByteChannel channel = Channels.newChannel(out);
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, channel);
+			}
+		}
+		finally { in.close(); }
+	}
 	
 	public String getURL() throws Exception {
 		return url + "/v1/import/file";
 	}
 
+	public String getBatchURL() throws Exception {
+		return url + "/v1/import/batch";
+	}
+
+	public String getUploadURL() throws Exception {
+		return url + "/v1/import/upload";
+	}
+
+	public String getChunkURL() throws Exception {
+		return url + "/v1/import/chunk";
+	}
+
 	public String getEventIDRequestURL(String message) throws Exception {
-		String u = url + "/v1/import/event?source=" + message;
-		if (!apikey.equals("")) u += "&apikey="+apikey;
+		return getEventIDRequestURL(url, apikey, message);
+	}
+
+	static String getEventIDRequestURL(String baseURL, String key, String message) {
+		String u = baseURL + "/v1/import/event?source=" + message;
+		if (!key.equals("")) u += "&apikey="+key;
 		return u;
 	}
 		
 	//curl -X PUT http://localhost/.../v1/import/event?source=some+useful+message
 	//{"status":"success","import_event_id":15}
-	private String getImportEventID(String message) {
+	private String getImportEventID(String requestURL) {
 		HttpURLConnection conn = null;
 		try {
-			URL u = new URL(getEventIDRequestURL(message));
+			URL u = new URL(requestURL);
 			logger.debug("getImportEventID");
 			logger.debug("...URL: "+u.toString());
-			conn = HttpUtil.getConnection(u);
-			conn.setReadTimeout(connectionTimeout);
-			conn.setConnectTimeout(readTimeout);
+			conn = getConnection(u);
 			conn.setRequestMethod("PUT");
 			conn.connect();
 			int responseCode = conn.getResponseCode();
 			logger.debug("...responseCode: " + responseCode);
 			String text = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false );
-			conn.disconnect();
+			releaseConnection(conn, true);
+			conn = null;
 			logger.debug("...response text: \""+text+"\"");
 			if (text.contains("\"status\":\"success\"") && text.contains("\"import_event_id\":")) {
 				text = text.replaceAll("[^0-9]", "");
@@ -174,39 +1055,86 @@ public class PosdaExportService extends AbstractExportService {
 			return text;
 		}
 		catch (Exception unable) { 
+			releaseConnection(conn, false);
 			logger.debug("...unable to get import_event_id; returning 0");
 			return "0"; 
 		}
 	}
 	
-	private String getDigest(File file) {
-		String result = "";
-		BufferedInputStream bis = null;
-		DigestInputStream dis = null;
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.reset();
-			bis = new BufferedInputStream( new FileInputStream( file ) );
-			dis = new DigestInputStream( bis, md );
-			while (dis.read() != -1) ; //empty loop
-			result = bytesToHex(md.digest());
-		}
-		catch (Exception ex) { result = ""; }
-		finally {
-			try { dis.close(); }
-			catch (Exception ignore) { }
-			try { bis.close(); }
-			catch (Exception ignore) { }
+	//Get a connection, from the pool if one is configured.
+	HttpURLConnection getConnection(URL u) throws Exception {
+		if (pool != null) return pool.getConnection(u, connectionTimeout, readTimeout);
+		HttpURLConnection conn = HttpUtil.getConnection(u);
+		conn.setConnectTimeout(connectionTimeout);
+		conn.setReadTimeout(readTimeout);
+		return conn;
+	}
+
+	//Record the response to a request in the concurrency limiter and the
+	//circuit breaker. The start time is the time the request body was
+	//sent, so the limiter sees only the latency of the server, or -1 if
+	//no request was started. Return -1 so the caller can mark the request
+	//recorded.
+	long recordOutcome(long startTime, int responseCode) {
+		if (startTime < 0) return -1;
+		if (limiter != null) limiter.release(startTime, PosdaConcurrencyLimiter.isOverload(responseCode));
+		if (PosdaCircuitBreaker.isFailure(responseCode)) breaker.recordFailure();
+		else breaker.recordSuccess();
+		return -1;
+	}
+
+	//Record a request that failed with an exception. Only a timeout tells
+	//the limiter that the server is overloaded, and only a failure of the
+	//connection counts against the circuit breaker; a local failure, such
+	//as an unreadable file or a wait for a pooled connection, just gives up
+	//the request's place in the window.
+	void recordFailure(long startTime, Exception e) {
+		if (startTime < 0) return;
+		if (limiter != null) {
+			if (isTimeout(e)) limiter.release(startTime, true);
+			else limiter.cancel();
 		}
-		return result.toString();
+		if (isTransportFailure(e)) breaker.recordFailure();
 	}
 
-	private String bytesToHex(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-		for (byte b : bytes) {
-			sb.append(String.format("%02x", b));
+	//Determine whether an exception, or its cause, is a connect or read timeout.
+	static boolean isTimeout(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof SocketTimeoutException) return true;
 		}
-		return sb.toString();
+		return false;
+	}
+
+	//Determine whether an exception, or its cause, is a failure to reach
+	//the server or to complete an exchange with it, rather than a local error.
+	static boolean isTransportFailure(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if ((t instanceof SocketException) || (t instanceof SocketTimeoutException)
+					|| (t instanceof UnknownHostException) || (t instanceof SSLException)
+					|| (t instanceof ProtocolException)) return true;
+		}
+		return false;
+	}
+
+	//Release a connection. A pooled connection is kept alive
+	//if the exchange completed; otherwise the socket is closed.
+	void releaseConnection(HttpURLConnection conn, boolean reusable) {
+		if (conn == null) return;
+		if (pool != null) pool.release(conn, reusable);
+		else conn.disconnect();
+	}
+	
+	static String getDigest(File file) {
+		return PosdaDigestCache.computeDigest(file);
+	}
+
+	static String bytesToHex(byte[] bytes) {
+		return PosdaDigestCache.bytesToHex(bytes);
+	}
+
+	//Get HTML table rows displaying the status of the circuit breaker.
+	String getBreakerRows() {
+		return breaker.getStatusRows();
 	}
 
 	/**
@@ -214,7 +1142,50 @@ public class PosdaExportService extends AbstractExportService {
 	 * @return HTML text displaying the active status of the stage.
 	 */
 	public synchronized String getStatusHTML() {
-		return super.getStatusHTML("");
+		String workerRows = "<tr><td width=\"20%\">Export workers</td><td>"+workerCount+"</td></tr>"
+						  + "<tr><td width=\"20%\">Files in process</td><td>"+activeCount.get()+"</td></tr>"
+						  + "<tr><td width=\"20%\">Files delayed for retry</td><td>"+retryScheduler.getDelayedCount()+"</td></tr>";
+		String breakerRows = getBreakerRows();
+		if (lanes != null) workerRows += lanes.getStatusRows();
+		String poolRows = (pool != null) ? pool.getStatusRows() : "";
+		String limiterRows = (limiter != null) ? limiter.getStatusRows() : "";
+		if (bandwidth != null) limiterRows += bandwidth.getStatusRows();
+		String eventRows = eventCache.getStatusRows();
+		String digestRows = (digestCache != null) ? digestCache.getStatusRows() : "";
+		String ledgerRows = (ledger != null) ? ledger.getStatusRows() : "";
+		String destinationRows = getDestinationRows();
+		long read = bytesRead.get();
+		long sent = bytesSent.get();
+		String ratio = (sent > 0) ? String.format("%.2f", (double)read / (double)sent) : "-";
+		String byteRows = "<tr><td width=\"20%\">Compression</td><td>"+compression+"</td></tr>"
+						+ ((chunkSize > 0)
+							? "<tr><td width=\"20%\">Uploads resumed</td><td>"+uploadsResumed.get()
+										+" ("+(bytesResumed.get()/(1024*1024))+" MB not resent)</td></tr>"
+							: "")
+						+ "<tr><td width=\"20%\">Bytes read / sent</td><td>"+read+" / "+sent+" (ratio "+ratio+")</td></tr>";
+		return super.getStatusHTML(workerRows + breakerRows + limiterRows + poolRows + eventRows + digestRows + ledgerRows + byteRows + destinationRows);
+	}
+
+	//Get HTML table rows displaying the status of each destination;
+	//this service has a single destination, which is shown above.
+	String getDestinationRows() {
+		return "";
+	}
+
+	//An OutputStream that counts the bytes written to the underlying stream.
+	static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
 	}
 	
 }
\ No newline at end of file
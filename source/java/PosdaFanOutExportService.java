@@ -0,0 +1,384 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import edu.uams.tcia.DicomHeader;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.Status;
+import org.rsna.server.HttpResponse;
+import org.rsna.util.StringUtil;
+import org.w3c.dom.Element;
+
+/**
+ * An ExportService that exports each file to several Posda sites.
+ * <p>
+ * Each file is read once and its digest is computed once; the data are
+ * streamed to all the destinations concurrently. Each destination has its
+ * own import event IDs, circuit breaker, and ledger of acknowledged objects,
+ * so when a file is retried it is only sent to the destinations that have
+ * not yet acknowledged it. A destination that rejects a file is not sent it
+ * again. A file is complete when every destination has acknowledged or
+ * rejected it; it is quarantined if any destination rejected it.
+ * <p>
+ * Each export worker holds a connection to every destination while it
+ * streams a file, so a connection pool is enlarged to at least the number
+ * of workers times the number of destinations.
+ * <p>
+ * Batch and chunked uploads are not supported by this service.
+ */
+public class PosdaFanOutExportService extends PosdaExportService {
+
+	static final Logger logger = Logger.getLogger(PosdaFanOutExportService.class);
+
+	static final int chunkQueueCapacity = 16;
+	static final int maxRejections = 10000;
+	static final byte[] endOfFile = new byte[0];
+	static final byte[] abort = new byte[0];
+
+	final List<Destination> destinations = new ArrayList<Destination>();
+	ExecutorService senders = null;
+
+	/**
+	 * Class constructor; creates a new instance of the ExportService.
+	 * @param element the configuration element.
+	 * @throws Exception on any error
+	 */
+	public PosdaFanOutExportService(Element element) throws Exception {
+		super(element);
+
+		//Get the destinations
+		String[] urls = element.getAttribute("urls").trim().split("[,\\s]+");
+		String[] keys = element.getAttribute("apikeys").split(",", -1);
+		int breakerThreshold = StringUtil.getInt(element.getAttribute("breakerThreshold").trim(), 5);
+		long probeInterval = StringUtil.getInt(element.getAttribute("probeInterval").trim(), 30) * (long)oneSecond;
+		int eventCacheSize = StringUtil.getInt(element.getAttribute("eventCacheSize").trim(), 1000);
+		long eventCacheTTL = StringUtil.getInt(element.getAttribute("eventCacheTTL").trim(), 3600) * (long)oneSecond;
+		for (int i=0; i<urls.length; i++) {
+			if (urls[i].equals("")) continue;
+			String key = (i < keys.length) ? keys[i].trim() : "";
+			int id = destinations.size() + 1;
+			destinations.add(new Destination(id, urls[i], key, breakerThreshold, probeInterval, eventCacheSize, eventCacheTTL));
+			logger.info(name+": destination "+id+": "+urls[i]);
+		}
+		if (destinations.size() == 0) throw new Exception(name+": no destination urls");
+
+		//Each worker holds a connection to every destination while it
+		//streams a file, so the pool must allow one for each of them.
+		int connectionsNeeded = workerCount * destinations.size();
+		if ((pool != null) && (pool.maxConnections < connectionsNeeded)) {
+			int tlsSessionTimeout = StringUtil.getInt(element.getAttribute("tlsSessionTimeout").trim(), 3600);
+			pool = new PosdaConnectionPool(connectionsNeeded, tlsSessionTimeout);
+			logger.info(name+": connection pool: maxConnections="+connectionsNeeded);
+		}
+
+		//Each file is sent in one request per destination, and each
+		//destination has its own circuit breaker; the window of the
+		//adaptive concurrency limit does not apply.
+		batchMode = false;
+		chunkSize = 0;
+		limiter = null;
+
+		//Each destination keeps its own ledger
+		if (ledger != null) {
+			ledger.close();
+			ledger = null;
+		}
+	}
+
+	/**
+	 * Start the export workers and the threads that stream to the destinations.
+	 */
+	public synchronized void start() {
+		senders = Executors.newCachedThreadPool();
+		super.start();
+	}
+
+	/**
+	 * Stop the export workers and the threads that stream to the destinations.
+	 */
+	public synchronized void shutdown() {
+		super.shutdown();
+		if (senders != null) senders.shutdownNow();
+		for (Destination dest : destinations) dest.ledger.close();
+	}
+
+	/**
+	 * Export a file to every destination that has neither acknowledged
+	 * nor rejected it.
+	 * @param fileToExport the file to export.
+	 * @param header the header of the file, or null if the file is not a DICOM object.
+	 * @return OK if all the destinations have acknowledged the file; FAIL if every
+	 * destination has acknowledged or rejected it and at least one rejected it;
+	 * otherwise RETRY.
+	 */
+	Status export(File fileToExport, DicomHeader header) {
+
+		//Do not export zero-length files
+		long fileLength = fileToExport.length();
+		if (fileLength == 0) {
+			if ((digestCache != null) && (header != null)) digestCache.remove(header.getSOPInstanceUID());
+			return Status.FAIL;
+		}
+
+		List<Sender> pending = new LinkedList<Sender>();
+		FileChannel in = null;
+		try {
+			String uid = (header != null) ? header.getSOPInstanceUID() : null;
+			boolean cachedDigest = (digestCache != null) && digestCache.contains(uid);
+			String hash = (digestCache != null) ? digestCache.getDigest(fileToExport, uid) : getDigest(fileToExport);
+			String key = (uid != null) ? uid : hash;
+			String patientID = getPatientID(header);
+
+			//Find the destinations that still need the file
+			boolean deferred = false;
+			boolean rejected = false;
+			for (Destination dest : destinations) {
+				if (dest.ledger.isAcknowledged(key, hash, fileLength)) continue;
+				if (dest.isRejected(key, hash)) rejected = true;
+				else if (!dest.breaker.allowRequest()) deferred = true;
+				else pending.add(new Sender(dest, fileLength, hash, patientID));
+			}
+			for (Sender sender : pending) sender.future = senders.submit(sender);
+
+			//Read the file once, handing each chunk to all the senders
+			if (pending.size() > 0) {
+				in = new FileInputStream(fileToExport).getChannel();
+				long position = 0;
+				while (position < fileLength) {
+					byte[] chunk = new byte[(int)Math.min(PosdaDigestCache.bufferSize, fileLength - position)];
+					ByteBuffer buffer = ByteBuffer.wrap(chunk);
+					while (buffer.hasRemaining()) {
+						if (in.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+					}
+					position += chunk.length;
+					for (Sender sender : pending) sender.queue.put(chunk);
+				}
+				for (Sender sender : pending) sender.queue.put(endOfFile);
+				bytesRead.addAndGet(fileLength);
+			}
+
+			//Collect the results
+			boolean staleDigest = false;
+			boolean retry = deferred;
+			for (Sender sender : pending) {
+				Status status = sender.future.get();
+				if (status.equals(Status.OK)) {
+					sender.dest.ledger.record(key, hash);
+					sender.dest.acknowledged.incrementAndGet();
+				}
+				else if (status.equals(Status.FAIL) && cachedDigest) {
+					staleDigest = true;
+					sender.dest.retried.incrementAndGet();
+				}
+				else if (status.equals(Status.FAIL)) {
+					sender.dest.reject(key, hash);
+					sender.dest.rejected.incrementAndGet();
+					rejected = true;
+				}
+				else {
+					sender.dest.retried.incrementAndGet();
+					retry = true;
+				}
+			}
+			if (staleDigest) {
+				//The cached digest may be stale if the object was changed
+				//by the export pipeline; drop it and compute it next time.
+				logger.warn("Unprocessable response for: " + fileToExport + " (cached digest discarded)");
+				digestCache.remove(uid);
+				return Status.RETRY;
+			}
+			if (retry) return Status.RETRY;
+
+			//Every destination has acknowledged or rejected the file
+			for (Destination dest : destinations) dest.forget(key);
+			if (digestCache != null) digestCache.remove(uid);
+			if (rejected) {
+				logger.warn("Rejected by at least one destination: " + fileToExport);
+				return Status.FAIL;
+			}
+			return Status.OK;
+		}
+		catch (Exception e) {
+			//Stop any senders still waiting for data, and wait for them
+			//to finish so a retry of the file cannot overlap them.
+			for (Sender sender : pending) {
+				sender.queue.clear();
+				sender.queue.offer(abort);
+			}
+			for (Sender sender : pending) {
+				if (sender.future == null) continue;
+				try { sender.future.get(); }
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				catch (Exception ignore) { }
+			}
+			if (logger.isDebugEnabled()) logger.debug(name+": export failed: " + e.getMessage(), e);
+			else logger.warn(name+": export failed: " + e.getMessage());
+			return Status.RETRY;
+		}
+		finally {
+			if (in != null) {
+				try { in.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	//The circuit breaker of the stage is not used; the
+	//destination rows show the state of each destination's breaker.
+	String getBreakerRows() {
+		return "";
+	}
+
+	//Get HTML table rows displaying the status of each destination.
+	String getDestinationRows() {
+		StringBuffer sb = new StringBuffer();
+		for (Destination dest : destinations) {
+			sb.append("<tr><td width=\"20%\">Destination "+dest.id+"</td><td>"+dest.url
+						+ ": " + dest.acknowledged.get() + " acknowledged, "
+						+ dest.retried.get() + " to retry, "
+						+ dest.rejected.get() + " rejected; circuit " + dest.breaker.getStateName()
+						+ "</td></tr>");
+		}
+		return sb.toString();
+	}
+
+	class Destination {
+		final int id;
+		final String url;
+		final String apikey;
+		final PosdaEventCache eventCache;
+		final PosdaExportLedger ledger;
+		final PosdaCircuitBreaker breaker;
+		final AtomicLong acknowledged = new AtomicLong(0);
+		final AtomicLong retried = new AtomicLong(0);
+		final AtomicLong rejected = new AtomicLong(0);
+		final Map<String,String> rejections = Collections.synchronizedMap(
+			new LinkedHashMap<String,String>() {
+				protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+					return size() > maxRejections;
+				}
+			});
+
+		Destination(int id, String url, String apikey, int breakerThreshold, long probeInterval,
+					int eventCacheSize, long eventCacheTTL) {
+			this.id = id;
+			this.url = url;
+			this.apikey = apikey;
+			File dir = new File(root, "destination" + id);
+			dir.mkdirs();
+			eventCache = new PosdaEventCache(dir, eventCacheSize, eventCacheTTL);
+			ledger = new PosdaExportLedger(dir, url);
+			breaker = new PosdaCircuitBreaker(name + " (" + url + ")", breakerThreshold, probeInterval);
+		}
+
+		//Remember that the destination rejected an object, so
+		//it is not sent again while other destinations are retried.
+		void reject(String key, String hash) {
+			rejections.put(key, hash);
+		}
+
+		boolean isRejected(String key, String hash) {
+			return hash.equals(rejections.get(key));
+		}
+
+		void forget(String key) {
+			rejections.remove(key);
+		}
+	}
+
+	//Streams one file to one destination from the chunks read by the export thread.
+	class Sender implements Callable<Status> {
+		final Destination dest;
+		final long fileLength;
+		final String hash;
+		final String patientID;
+		final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(chunkQueueCapacity);
+		Future<Status> future = null;
+		boolean done = false;
+		boolean aborted = false;
+
+		Sender(Destination dest, long fileLength, String hash, String patientID) {
+			this.dest = dest;
+			this.fileLength = fileLength;
+			this.hash = hash;
+			this.patientID = patientID;
+		}
+
+		public Status call() {
+			HttpURLConnection conn = null;
+			try {
+				String eventID = getEventID(dest.eventCache, dest.url, dest.apikey, patientID);
+				String query = "?import_event_id="+eventID+"&digest="+hash;
+				if (!dest.apikey.equals("")) query += "&apikey="+dest.apikey;
+				conn = getConnection(new URL(dest.url + "/v1/import/file" + query));
+				conn.setRequestMethod("PUT");
+				conn.setFixedLengthStreamingMode(fileLength);
+				conn.connect();
+
+				//Send the chunks as they arrive
+				OutputStream out = getOutputStream(conn);
+				byte[] chunk;
+				while ((chunk = next()) != endOfFile) out.write(chunk);
+				out.close();
+				bytesSent.addAndGet(fileLength);
+
+				//Get the response
+				int responseCode = conn.getResponseCode();
+				String responseText = getResponseText(conn, responseCode);
+				releaseConnection(conn, true);
+				conn = null;
+				if (PosdaCircuitBreaker.isFailure(responseCode)) dest.breaker.recordFailure();
+				else dest.breaker.recordSuccess();
+				if (responseCode == HttpResponse.ok) return Status.OK;
+				logger.warn("Failure response from "+dest.url+" ("+responseCode+")");
+				logger.warn("Response text: "+responseText);
+				return (responseCode == HttpResponse.unprocessable) ? Status.FAIL : Status.RETRY;
+			}
+			catch (Exception e) {
+				//A file that could not be read is not the destination's failure
+				if (!aborted && isTransportFailure(e)) dest.breaker.recordFailure();
+				releaseConnection(conn, false);
+				logger.warn(name+": export to "+dest.url+" failed: " + e.getMessage());
+				return Status.RETRY;
+			}
+			finally {
+				//Consume the rest of the file so the reader is not blocked
+				try { while (!done) next(); }
+				catch (Exception ignore) { }
+			}
+		}
+
+		private byte[] next() throws Exception {
+			byte[] chunk = queue.take();
+			if (chunk == abort) {
+				done = true;
+				aborted = true;
+				throw new IOException("The file could not be read");
+			}
+			if (chunk == endOfFile) done = true;
+			return chunk;
+		}
+	}
+}
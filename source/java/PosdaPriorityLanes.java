@@ -0,0 +1,141 @@
+package org.rsna.ctp.stdstages;
+
+import edu.uams.tcia.DicomHeader;
+import java.io.File;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.pipeline.QueueManager;
+
+/**
+ * Priority lanes for the queue of a Posda export service.
+ * <p>
+ * Files are classified when they enter the stage:
+ * <ul>
+ * <li>control: files that are not DICOM objects, such as the manifests
+ * and histories written by TCIAServlet
+ * <li>small: DICOM objects that are not images (SR, KO, PR, ...) and
+ * images no larger than the small object size
+ * <li>bulk: all other images; these stay in the standard queue of the stage
+ * </ul>
+ * The control lane is always served first. The small lane is served ahead
+ * of the bulk lane, except that after a burst of small objects one bulk
+ * object is let through, so neither lane can starve the other.
+ */
+class PosdaPriorityLanes {
+
+	static final Logger logger = Logger.getLogger(PosdaPriorityLanes.class);
+
+	static final int CONTROL = 0;
+	static final int SMALL = 1;
+	static final int BULK = 2;
+	static final String[] laneNames = { "control", "small", "bulk" };
+
+	final QueueManager control;
+	final QueueManager small;
+	final QueueManager bulk;
+	final File temp;
+	final long smallSize;
+	final int burst;
+	int streak = 0;
+
+	/**
+	 * Create the lanes.
+	 * @param root the root directory of the export service.
+	 * @param bulk the standard queue of the export service.
+	 * @param smallSize the largest image, in bytes, that goes in the small lane.
+	 * @param burst the number of small objects served before a waiting bulk object.
+	 */
+	PosdaPriorityLanes(File root, QueueManager bulk, long smallSize, int burst) {
+		File dir = new File(root, "lanes");
+		control = new QueueManager(new File(dir, "control"), 0, 0);
+		small = new QueueManager(new File(dir, "small"), 0, 0);
+		this.bulk = bulk;
+		this.smallSize = smallSize;
+		this.burst = Math.max(1, burst);
+
+		//Return any files left in process by a previous instance to the bulk queue
+		temp = new File(dir, "temp");
+		temp.mkdirs();
+		File[] files = temp.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && (bulk.enqueue(file) != null)) file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the lane for an object.
+	 * @param fileObject the object.
+	 * @return CONTROL, SMALL, or BULK.
+	 */
+	int classify(FileObject fileObject) {
+		if (!(fileObject instanceof DicomObject)) return CONTROL;
+		DicomObject dob = (DicomObject)fileObject;
+		if (!dob.isImage() || (dob.getFile().length() <= smallSize)) return SMALL;
+		return BULK;
+	}
+
+	/**
+	 * Get the lane for a file whose header has been read.
+	 * @param header the header, or null if the file is not a DICOM object.
+	 * @param file the file.
+	 * @return CONTROL, SMALL, or BULK.
+	 */
+	int classify(DicomHeader header, File file) {
+		if (header == null) return CONTROL;
+		if (!header.isImage() || (file.length() <= smallSize)) return SMALL;
+		return BULK;
+	}
+
+	/**
+	 * Get the queue for a lane.
+	 * @param lane CONTROL, SMALL, or BULK.
+	 * @return the queue.
+	 */
+	QueueManager getQueue(int lane) {
+		if (lane == CONTROL) return control;
+		if (lane == SMALL) return small;
+		return bulk;
+	}
+
+	/**
+	 * Get the next file from the control or small lanes.
+	 * @return the file, or null if the lanes are empty or a waiting bulk
+	 * object is owed its turn, in which case the bulk queue is to be served.
+	 */
+	synchronized File next() {
+		File file = control.dequeue(temp);
+		if (file != null) return file;
+		if ((streak >= burst) && (bulk.size() > 0)) {
+			streak = 0;
+			return null;
+		}
+		file = small.dequeue(temp);
+		if (file != null) {
+			streak++;
+			return file;
+		}
+		streak = 0;
+		return null;
+	}
+
+	/**
+	 * Get the number of files in each lane.
+	 * @return the sizes of the control, small, and bulk lanes.
+	 */
+	int[] getSizes() {
+		return new int[] { control.size(), small.size(), bulk.size() };
+	}
+
+	/**
+	 * Get HTML table rows displaying the depth of each lane.
+	 * @return HTML table rows.
+	 */
+	String getStatusRows() {
+		int[] sizes = getSizes();
+		return "<tr><td width=\"20%\">Queue lanes (control / small / bulk)</td><td>"
+					+sizes[CONTROL]+" / "+sizes[SMALL]+" / "+sizes[BULK]+"</td></tr>";
+	}
+}
@@ -0,0 +1,191 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * A scheduler for files whose export must be retried.
+ * <p>
+ * A file to be retried is renamed into the retry directory with its attempt
+ * count as a prefix, and its name is placed in a hashed timing wheel with a
+ * delay that doubles with each attempt. Scheduling and expiry are O(1) and
+ * the wheel only holds one small entry per file, so it stays cheap with very
+ * large numbers of pending files. When a file's delay expires, it is placed
+ * on the due list, from which the exporter takes it ahead of the queue.
+ * <p>
+ * Because the files themselves live in the retry directory, pending retries
+ * survive a restart: any files found there when the scheduler starts are
+ * scheduled again.
+ */
+class PosdaRetryScheduler {
+
+	static final Logger logger = Logger.getLogger(PosdaRetryScheduler.class);
+
+	static final long tick = 1000;
+	static final int slotCount = 512;
+	static final Pattern namePattern = Pattern.compile("^R(\\d+)-(.*)$");
+
+	final File dir;
+	final long baseDelay;
+	final long maxDelay;
+	final ArrayDeque<Entry>[] slots;
+	final ConcurrentLinkedQueue<File> due = new ConcurrentLinkedQueue<File>();
+	final Random random = new Random();
+	int currentSlot = 0;
+	int delayedCount = 0;
+	Ticker ticker = null;
+
+	/**
+	 * Construct a scheduler.
+	 * @param dir the directory in which files waiting for retry are kept.
+	 * @param baseDelay the delay in ms before the first retry.
+	 * @param maxDelay the longest delay in ms between retries.
+	 */
+	@SuppressWarnings("unchecked")
+	PosdaRetryScheduler(File dir, long baseDelay, long maxDelay) {
+		this.dir = dir;
+		this.baseDelay = Math.max(tick, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		dir.mkdirs();
+		slots = new ArrayDeque[slotCount];
+		for (int i=0; i<slotCount; i++) slots[i] = new ArrayDeque<Entry>();
+	}
+
+	/**
+	 * Schedule the files left in the retry directory by a previous
+	 * instance and start the thread that turns the wheel.
+	 */
+	synchronized void start() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile()) add(file, delay(getAttempts(file)));
+			}
+			if (files.length > 0) logger.info("Rescheduled "+files.length+" files from "+dir);
+		}
+		ticker = new Ticker();
+		ticker.start();
+	}
+
+	/**
+	 * Stop the thread that turns the wheel. Files remain in the retry directory.
+	 */
+	synchronized void stop() {
+		if (ticker != null) ticker.interrupt();
+		ticker = null;
+	}
+
+	/**
+	 * Move a file into the retry directory and schedule it.
+	 * @param file the file to retry.
+	 * @param countAttempt true if the file was sent and failed; false if the
+	 * attempt was not made (for example, because the destination is down),
+	 * in which case the delay is not increased.
+	 * @return true if the file was scheduled; false if it could not be moved.
+	 */
+	boolean schedule(File file, boolean countAttempt) {
+		int attempts = getAttempts(file) + (countAttempt ? 1 : 0);
+		File retryFile = new File(dir, "R" + attempts + "-" + getBaseName(file));
+		if (!file.renameTo(retryFile)) return false;
+		synchronized (this) {
+			add(retryFile, delay(attempts));
+		}
+		return true;
+	}
+
+	/**
+	 * Get the next file whose delay has expired.
+	 * @return the file, or null if no file is due.
+	 */
+	File poll() {
+		return due.poll();
+	}
+
+	/**
+	 * Get the number of files waiting in the wheel or on the due list.
+	 * @return the number of files.
+	 */
+	synchronized int getDelayedCount() {
+		return delayedCount + due.size();
+	}
+
+	/**
+	 * Get the number of attempts recorded in the name of a file.
+	 * @param file the file.
+	 * @return the number of failed attempts, or 0 for a file that has not been retried.
+	 */
+	static int getAttempts(File file) {
+		Matcher matcher = namePattern.matcher(file.getName());
+		return matcher.matches() ? Integer.parseInt(matcher.group(1)) : 0;
+	}
+
+	static String getBaseName(File file) {
+		Matcher matcher = namePattern.matcher(file.getName());
+		return matcher.matches() ? matcher.group(2) : file.getName();
+	}
+
+	//Compute the delay for an attempt: the base delay doubled
+	//for each failed attempt, up to the limit, with 20% jitter.
+	private long delay(int attempts) {
+		long delay = baseDelay;
+		for (int i=1; (i<attempts) && (delay < maxDelay); i++) delay *= 2;
+		delay = Math.min(delay, maxDelay);
+		return delay - (long)(delay * 0.2 * random.nextDouble());
+	}
+
+	private void add(File file, long delay) {
+		long ticks = Math.max(1, delay / tick);
+		int slot = (int)((currentSlot + ticks) % slotCount);
+		int rounds = (int)((ticks - 1) / slotCount);
+		slots[slot].add(new Entry(file, rounds));
+		delayedCount++;
+	}
+
+	//Advance the wheel one slot, moving expired entries to the due list.
+	private synchronized void advance() {
+		currentSlot = (currentSlot + 1) % slotCount;
+		ArrayDeque<Entry> slot = slots[currentSlot];
+		int n = slot.size();
+		for (int i=0; i<n; i++) {
+			Entry entry = slot.poll();
+			if (entry.rounds > 0) {
+				entry.rounds--;
+				slot.add(entry);
+			}
+			else {
+				delayedCount--;
+				if (entry.file.exists()) due.add(entry.file);
+			}
+		}
+	}
+
+	class Ticker extends Thread {
+		public Ticker() {
+			super("PosdaRetryScheduler - "+dir.getName());
+			setDaemon(true);
+		}
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					sleep(tick);
+					advance();
+				}
+				catch (InterruptedException quit) { break; }
+			}
+		}
+	}
+
+	static class Entry {
+		final File file;
+		int rounds;
+		Entry(File file, int rounds) {
+			this.file = file;
+			this.rounds = rounds;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A disk cache of the JPEG previews of DICOM images.
+ * <p>
+ * Each preview is stored in a file whose name is a digest of the path,
+ * size, and modification time of the image and of the render parameters,
+ * so a changed image is never served a stale preview. When the total size
+ * of the previews exceeds the limit, the least recently used previews are
+ * deleted. The cache survives a restart: the files found in the cache
+ * directory at startup are reused in the order of their modification times.
+ * <p>
+ * Rendering decodes the whole image, so the number of simultaneous renders
+ * is limited. Thumbnails of the first image of each new series found in the
+ * storage are rendered in the background, on one thread with a bounded queue.
+ */
+class PreviewCache {
+
+	static final Logger logger = Logger.getLogger(PreviewCache.class);
+
+	static final int maxPendingThumbnails = 256;
+
+	//The render parameters: frame, maxWidth, minWidth, quality
+	static final int[] preview = { 0, 1024, 512, -1 };
+	static final int[] thumbnail = { 0, 160, 96, -1 };
+
+	final File dir;
+	final long maxBytes;
+	final int maxRenders;
+	final Semaphore renders;
+	final ThreadPoolExecutor background;
+	final Map<String,Long> entries = new LinkedHashMap<String,Long>(1024, 0.75f, true);
+	long bytes = 0;
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * Open the cache.
+	 * @param dir the directory in which the previews are stored.
+	 * @param maxBytes the maximum total size of the previews.
+	 * @param maxRenders the maximum number of simultaneous renders.
+	 */
+	PreviewCache(File dir, long maxBytes, int maxRenders) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxRenders = Math.max(1, maxRenders);
+		renders = new Semaphore(this.maxRenders, true);
+		background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+								new ArrayBlockingQueue<Runnable>(maxPendingThumbnails),
+								new ThreadPoolExecutor.DiscardPolicy());
+		dir.mkdirs();
+		load();
+	}
+
+	//Reuse the previews left by the last run, oldest first.
+	private synchronized void load() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().startsWith("tmp-")) file.delete();
+			else if (file.isFile()) {
+				entries.put(file.getName(), file.length());
+				bytes += file.length();
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Get the preview of an image, rendering it if it is not in the cache.
+	 * @param file the DICOM image.
+	 * @param params the render parameters (frame, maxWidth, minWidth, quality).
+	 * @return the JPEG bytes, or null if the file is not an image.
+	 * @throws Exception if the file cannot be read or rendered.
+	 */
+	byte[] get(File file, int[] params) throws Exception {
+		String name = getName(file, params);
+		byte[] jpeg = read(name);
+		if (jpeg != null) return jpeg;
+		renders.acquire();
+		try {
+			//Another request may have rendered it while this one waited
+			jpeg = read(name);
+			if (jpeg != null) return jpeg;
+			synchronized (this) { misses++; }
+			File jpegFile = render(file, params, name);
+			return (jpegFile != null) ? Files.readAllBytes(jpegFile.toPath()) : null;
+		}
+		finally { renders.release(); }
+	}
+
+	/**
+	 * Render the thumbnail of an image in the background, if it is not
+	 * already in the cache. Requests beyond the limit of the queue are dropped.
+	 * @param file the DICOM image.
+	 */
+	void prefetch(final File file) {
+		background.execute(new Runnable() {
+			public void run() {
+				try {
+					String name = getName(file, thumbnail);
+					synchronized (PreviewCache.this) {
+						if (entries.containsKey(name)) return;
+					}
+					renders.acquire();
+					try { render(file, thumbnail, name); }
+					finally { renders.release(); }
+				}
+				catch (InterruptedException stop) { }
+				catch (Exception ex) { logger.debug("Unable to render the thumbnail of "+file); }
+			}
+		});
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	void shutdown() {
+		background.shutdownNow();
+	}
+
+	//Read a preview from the cache, or return null if it is not there.
+	private byte[] read(String name) {
+		synchronized (this) {
+			if (entries.get(name) == null) return null;
+			hits++;
+		}
+		try { return Files.readAllBytes(new File(dir, name).toPath()); }
+		catch (Exception evicted) {
+			synchronized (this) { remove(name); }
+			return null;
+		}
+	}
+
+	//Render an image into the cache.
+	private File render(File file, int[] params, String name) throws Exception {
+		DicomObject dob = new DicomObject(file);
+		if (!dob.isImage()) return null;
+		File temp = File.createTempFile("tmp-", ".jpeg", dir);
+		try {
+			dob.saveAsJPEG(temp, params[0], params[1], params[2], params[3]);
+			File jpeg = new File(dir, name);
+			Files.move(temp.toPath(), jpeg.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			synchronized (this) {
+				remove(name);
+				entries.put(name, jpeg.length());
+				bytes += jpeg.length();
+				evict();
+			}
+			return jpeg;
+		}
+		finally { temp.delete(); }
+	}
+
+	//Delete the least recently used previews until the cache fits.
+	private void evict() {
+		Iterator<Map.Entry<String,Long>> it = entries.entrySet().iterator();
+		while ((bytes > maxBytes) && (entries.size() > 1) && it.hasNext()) {
+			Map.Entry<String,Long> entry = it.next();
+			bytes -= entry.getValue();
+			new File(dir, entry.getKey()).delete();
+			it.remove();
+		}
+	}
+
+	private void remove(String name) {
+		Long size = entries.remove(name);
+		if (size != null) bytes -= size;
+	}
+
+	//The name of the preview of an image, identified by its path,
+	//size, and modification time, with the given render parameters.
+	static String getName(File file, int[] params) throws Exception {
+		String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+		for (int p : params) key += "|" + p;
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		byte[] digest = md.digest(key.getBytes("UTF-8"));
+		StringBuffer sb = new StringBuffer();
+		for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+		return sb.append(".jpeg").toString();
+	}
+
+	/**
+	 * Get an XML element string describing the cache.
+	 * @return the XML string.
+	 */
+	synchronized String toXML() {
+		return "<previews entries=\""+entries.size()+"\" bytes=\""+bytes+"\" maxBytes=\""+maxBytes+"\""
+					+ " hits=\""+hits+"\" misses=\""+misses+"\""
+					+ " activeRenders=\""+(maxRenders - renders.availablePermits())+"\""
+					+ " pendingThumbnails=\""+background.getQueue().size()+"\"/>";
+	}
+}
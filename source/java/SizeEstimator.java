@@ -0,0 +1,267 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.log4j.Logger;
+
+/**
+ * An estimator of the number and total size of the files in a set of
+ * directory trees, for the preflight check of an import.
+ * <p>
+ * The exact totals are computed by a parallel walk of the tree in the
+ * background. The walk keeps a summary of each directory (the number and
+ * total size of its files and the names of its subdirectories), which is
+ * reused for ten minutes as long as the modification time of the directory is
+ * unchanged, so walking the same tree again mostly reads directory timestamps.
+ * The exact totals of a tree are reused for a minute if its root is unchanged.
+ * <p>
+ * If the walk does not finish quickly, an estimate is made by random
+ * probes from the root to the leaves (Knuth's estimator): each probe
+ * multiplies the files of the directories on its path by the branching
+ * factors above them. The mean of the probes is an unbiased estimate of
+ * the totals, and their spread gives a 95% confidence interval. The
+ * exact totals replace the estimate when the walk finishes.
+ */
+class SizeEstimator {
+
+	static final Logger logger = Logger.getLogger(SizeEstimator.class);
+
+	static final long exactWait = 1000;
+	static final long samplingTime = 1500;
+	static final int maxProbes = 5000;
+	static final int maxDirectories = 500000;
+	static final long maxSummaryAge = 10 * 60 * 1000;
+	static final long maxResultAge = 60 * 1000;
+
+	final ForkJoinPool pool;
+	final Map<String,DirSummary> summaries;
+	final Map<String,ForkJoinTask<long[]>> walks = new HashMap<String,ForkJoinTask<long[]>>();
+	final Map<String,Estimate> results = new HashMap<String,Estimate>();
+
+	/**
+	 * Create an estimator.
+	 * @param threads the number of threads walking the trees.
+	 */
+	SizeEstimator(int threads) {
+		pool = new ForkJoinPool(Math.max(1, threads));
+		summaries = new LinkedHashMap<String,DirSummary>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,DirSummary> eldest) {
+				return size() > maxDirectories;
+			}
+		};
+	}
+
+	/**
+	 * Get the number and total size of the files in a file or directory tree.
+	 * The result is exact if the tree has been walked since it last changed, or
+	 * if the walk finishes within a second; otherwise it is an estimate, and
+	 * the walk continues in the background.
+	 * @param file the file or directory.
+	 * @return the estimate.
+	 */
+	Estimate estimate(File file) {
+		if (!file.isDirectory()) {
+			long size = file.isFile() ? file.length() : 0;
+			return new Estimate(file.isFile() ? 1 : 0, size, 0, true);
+		}
+		String key = file.getAbsolutePath();
+		ForkJoinTask<long[]> walk;
+		synchronized (this) {
+			Estimate result = results.get(key);
+			if ((result != null) && result.isCurrent(file)) return result;
+			walk = walks.get(key);
+			if (walk == null) {
+				walk = pool.submit(new WalkTask(file));
+				walks.put(key, walk);
+			}
+		}
+		Estimate result = getResult(key, file, walk, exactWait);
+		return (result != null) ? result : sample(file);
+	}
+
+	/**
+	 * Get the exact totals of a set of files and directories, if they are known.
+	 * @param files the files and directories.
+	 * @return the number of files and the total size, or null if the exact
+	 * totals of any of the directories are not known.
+	 */
+	synchronized long[] getExactSize(List<File> files) {
+		long[] total = new long[2];
+		for (File file : files) {
+			if (file.isDirectory()) {
+				Estimate result = results.get(file.getAbsolutePath());
+				if ((result == null) || !result.isCurrent(file)) return null;
+				total[0] += result.files;
+				total[1] += result.bytes;
+			}
+			else if (file.isFile()) {
+				total[0]++;
+				total[1] += file.length();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Stop the threads.
+	 */
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	//Wait for a walk to finish, and record its result.
+	private Estimate getResult(String key, File dir, ForkJoinTask<long[]> walk, long wait) {
+		long[] totals;
+		try { totals = walk.get(wait, TimeUnit.MILLISECONDS); }
+		catch (TimeoutException notYet) { return null; }
+		catch (Exception ex) {
+			logger.warn("Unable to walk "+dir, ex);
+			totals = new long[2];
+		}
+		synchronized (this) {
+			Estimate result = new Estimate(totals[0], totals[1], 0, true);
+			result.dirModified = dir.lastModified();
+			results.put(key, result);
+			if (walks.get(key) == walk) walks.remove(key);
+			return result;
+		}
+	}
+
+	//Estimate the totals of a directory tree by random probes.
+	private Estimate sample(File root) {
+		long end = System.currentTimeMillis() + samplingTime;
+		int n = 0;
+		double sumFiles = 0;
+		double sumBytes = 0, sumBytesSq = 0;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while ((n < maxProbes) && (System.currentTimeMillis() < end)) {
+			double weight = 1;
+			double files = 0;
+			double bytes = 0;
+			File dir = root;
+			int depth = 0;
+			while ((dir != null) && (depth++ < 256)) {
+				DirSummary summary = getSummary(dir);
+				files += weight * summary.files;
+				bytes += weight * summary.bytes;
+				if (summary.subdirs.length == 0) break;
+				weight *= summary.subdirs.length;
+				dir = new File(dir, summary.subdirs[random.nextInt(summary.subdirs.length)]);
+			}
+			n++;
+			sumFiles += files;
+			sumBytes += bytes;
+			sumBytesSq += bytes * bytes;
+		}
+		double meanFiles = sumFiles / n;
+		double meanBytes = sumBytes / n;
+		double varBytes = (n > 1) ? Math.max(0, (sumBytesSq - n * meanBytes * meanBytes) / (n - 1)) : meanBytes * meanBytes;
+		double margin = 1.96 * Math.sqrt(varBytes / n);
+		logger.debug("Sampled "+root+" with "+n+" probes: "+(long)meanFiles+" files, "+(long)meanBytes+" +/- "+(long)margin+" bytes");
+		return new Estimate(Math.round(meanFiles), Math.round(meanBytes), Math.round(margin), false);
+	}
+
+	//Get the summary of a directory, listing it if it has changed.
+	private DirSummary getSummary(File dir) {
+		String key = dir.getAbsolutePath();
+		long lastModified = dir.lastModified();
+		long now = System.currentTimeMillis();
+		synchronized (summaries) {
+			DirSummary summary = summaries.get(key);
+			if ((summary != null) && (summary.lastModified == lastModified)
+					&& (now - summary.time < maxSummaryAge)) return summary;
+		}
+		DirSummary summary = new DirSummary(lastModified, now);
+		List<String> subdirs = new LinkedList<String>();
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+			try {
+				for (Path path : stream) {
+					BasicFileAttributes attrs;
+					try { attrs = Files.readAttributes(path, BasicFileAttributes.class); }
+					catch (Exception skip) { continue; }
+					if (attrs.isDirectory()) subdirs.add(path.getFileName().toString());
+					else if (attrs.isRegularFile()) {
+						summary.files++;
+						summary.bytes += attrs.size();
+					}
+				}
+			}
+			finally { stream.close(); }
+		}
+		catch (Exception ex) { logger.debug("Unable to list "+dir); }
+		summary.subdirs = subdirs.toArray(new String[subdirs.size()]);
+		synchronized (summaries) { summaries.put(key, summary); }
+		return summary;
+	}
+
+	//Walk a directory tree, returning the number and total size of its files.
+	class WalkTask extends RecursiveTask<long[]> {
+		final File dir;
+		WalkTask(File dir) {
+			this.dir = dir;
+		}
+		protected long[] compute() {
+			DirSummary summary = getSummary(dir);
+			long[] totals = new long[] { summary.files, summary.bytes };
+			List<WalkTask> tasks = new LinkedList<WalkTask>();
+			for (String name : summary.subdirs) tasks.add(new WalkTask(new File(dir, name)));
+			for (WalkTask task : invokeAll(tasks)) {
+				long[] sub = task.join();
+				totals[0] += sub[0];
+				totals[1] += sub[1];
+			}
+			return totals;
+		}
+	}
+
+	static class DirSummary {
+		final long lastModified;
+		final long time;
+		int files = 0;
+		long bytes = 0;
+		String[] subdirs;
+		DirSummary(long lastModified, long time) {
+			this.lastModified = lastModified;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The number and total size of the files in a tree.
+	 */
+	static class Estimate {
+		final long files;
+		final long bytes;
+		final long margin;
+		final boolean exact;
+		final long time;
+		long dirModified = 0;
+		Estimate(long files, long bytes, long margin, boolean exact) {
+			this.files = files;
+			this.bytes = bytes;
+			this.margin = margin;
+			this.exact = exact;
+			this.time = System.currentTimeMillis();
+		}
+		//An exact result is reused while the root is unchanged and the result is recent.
+		boolean isCurrent(File dir) {
+			return (dir.lastModified() == dirModified)
+					&& (System.currentTimeMillis() - time < maxResultAge);
+		}
+	}
+}
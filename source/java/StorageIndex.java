@@ -0,0 +1,432 @@
+package edu.uams.tcia;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamWriter;
+import jdbm.RecordManager;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * A persistent index of the DICOM objects in the root directory of a
+ * DirectoryStorageService, used to list the patients, studies, and series
+ * in the storage without reading the objects.
+ * <p>
+ * The index has one entry for each directory, with the names of its
+ * subdirectories and the header elements of each of its files. When the
+ * index is refreshed, the tree is walked, and a directory is listed again if
+ * its modification time has changed or if any of its files has changed size
+ * or modification time, since an object stored again in place under the same
+ * name does not change the directory. Only the files that are new or have
+ * changed are read. A directory
+ * modified within the last few seconds is not trusted and is listed again
+ * on the next refresh, since file system timestamps are coarse. Refreshes
+ * are limited to one every few seconds unless the index has been
+ * invalidated by a change made by the plugin itself.
+ * <p>
+ * If the database cannot be opened or was written by a different version of
+ * the index, it is deleted and rebuilt from the files on disk.
+ */
+class StorageIndex {
+
+	static final Logger logger = Logger.getLogger(StorageIndex.class);
+
+	static final String version = "1";
+	static final String versionKey = "__version";
+	static final long minRefreshInterval = 5 * 1000;
+	static final long settleTime = 2 * 1000;
+	static final String[] sortFields = { "path", "name", "PatientName", "PatientID", "StudyDate", "Modality", "Series" };
+
+	final File storageRoot;
+	final File indexDir;
+	RecordManager recman = null;
+	HTree index = null;
+	long lastRefresh = 0;
+	int dirsListed = 0;
+	int filesRead = 0;
+	int fileCount = -1;
+	PreviewCache previews = null;
+
+	/**
+	 * Open the index of a storage root, creating it if necessary.
+	 * @param storageRoot the root directory of the DirectoryStorageService.
+	 * @param indexDir the directory in which the database is stored.
+	 */
+	StorageIndex(File storageRoot, File indexDir) {
+		this.storageRoot = storageRoot;
+		this.indexDir = indexDir;
+		open();
+	}
+
+	//Open the database, deleting it if it is unusable or out of date.
+	private void open() {
+		fileCount = -1;
+		if (openDatabase()) return;
+		logger.info("Rebuilding the storage index in "+indexDir);
+		close();
+		FileUtil.deleteAll(indexDir);
+		if (!openDatabase()) logger.warn("Unable to open the storage index in "+indexDir);
+	}
+
+	private boolean openDatabase() {
+		try {
+			indexDir.mkdirs();
+			File indexFile = new File(indexDir, "__storageIndex");
+			recman = JdbmUtil.getRecordManager( indexFile.getPath() );
+			index = JdbmUtil.getHTree(recman, "dirIndex");
+			Object v = index.get(versionKey);
+			if (v == null) {
+				index.put(versionKey, version);
+				recman.commit();
+				return true;
+			}
+			return v.equals(version);
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to open the storage index in "+indexDir, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Commit and close the database.
+	 */
+	synchronized void close() {
+		if (recman != null) {
+			try {
+				recman.commit();
+				recman.close();
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to commit and close the storage index");
+			}
+			recman = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * Force a refresh on the next listing, for example after
+	 * files have been moved out of the storage.
+	 */
+	synchronized void invalidate() {
+		lastRefresh = 0;
+	}
+
+	/**
+	 * Delete the index and rebuild it from the files on disk.
+	 */
+	synchronized void rebuild() {
+		close();
+		FileUtil.deleteAll(indexDir);
+		open();
+		lastRefresh = 0;
+	}
+
+	/**
+	 * Get the number of files in the storage, refreshing the index if necessary.
+	 * The count is kept up to date as directories are listed again, so it is
+	 * only computed from the whole index once.
+	 * @return the number of files.
+	 */
+	synchronized int getFileCount() {
+		refresh();
+		if ((fileCount < 0) && (index != null)) fileCount = count("");
+		return Math.max(fileCount, 0);
+	}
+
+	private int count(String key) {
+		DirEntry entry = getEntry(key);
+		if (entry == null) return 0;
+		int n = entry.files.length;
+		for (String name : entry.subdirs) n += count(key + "/" + name);
+		return n;
+	}
+
+	/**
+	 * Write a listing of the objects in the storage, in the format of the
+	 * DicomFiles document: a tree of dir elements containing DicomObject elements.
+	 * @param xml the writer.
+	 * @throws Exception if the listing cannot be written.
+	 */
+	synchronized void write(XMLStreamWriter xml) throws Exception {
+		refresh();
+		Map<String,Summary> summaries = new HashMap<String,Summary>();
+		Summary summary = summarize("", summaries);
+		xml.writeStartElement("DicomFiles");
+		xml.writeAttribute("count", Integer.toString(summary.count));
+		write(xml, storageRoot, "", true, summaries);
+		xml.writeEndElement();
+	}
+
+	/**
+	 * Write a page of a flat listing of the objects in the storage. Each
+	 * DicomObject element has a path attribute, the path of its directory
+	 * relative to the storage root.
+	 * @param xml the writer.
+	 * @param query the sort order, filter, and page.
+	 * @throws Exception if the listing cannot be written.
+	 */
+	synchronized void write(XMLStreamWriter xml, ListingQuery query) throws Exception {
+		refresh();
+		offer(query, "");
+		xml.writeStartElement("DicomFiles");
+		xml.writeAttribute("total", Integer.toString(query.total));
+		List<ListingQuery.Item> page = query.getPage();
+		xml.writeAttribute("count", Integer.toString(page.size()));
+		String next = query.getNextCursor();
+		if (next != null) xml.writeAttribute("next", next);
+		for (ListingQuery.Item item : page) {
+			xml.writeEmptyElement("DicomObject");
+			String path = item.path.substring(0, item.path.lastIndexOf("/"));
+			xml.writeAttribute("path", path.startsWith("/") ? path.substring(1) : path);
+			writeAttributes(xml, (FileEntry)item.payload);
+		}
+		xml.writeEndElement();
+	}
+
+	//Offer the objects in a directory and its subdirectories to a query.
+	private void offer(ListingQuery query, String key) {
+		DirEntry entry = getEntry(key);
+		if (entry == null) return;
+		for (FileEntry fe : entry.files) {
+			if (!fe.dicom) continue;
+			String path = key + "/" + fe.name;
+			String value;
+			if (query.sort.equals("name")) value = fe.name;
+			else if (query.sort.equals("PatientName")) value = fe.patientName;
+			else if (query.sort.equals("PatientID")) value = fe.patientID;
+			else if (query.sort.equals("StudyDate")) value = fe.studyDate;
+			else if (query.sort.equals("Modality")) value = fe.modality;
+			else if (query.sort.equals("Series")) value = ListingQuery.numeric(fe.series);
+			else value = path.substring(1);
+			query.offer(0, value, path, fe);
+		}
+		for (String name : entry.subdirs) offer(query, key + "/" + name);
+	}
+
+	//Get the number of objects under a directory and the PatientID of its
+	//first child element, remembering the results for the directories.
+	private Summary summarize(String key, Map<String,Summary> summaries) {
+		Summary summary = new Summary();
+		DirEntry entry = getEntry(key);
+		if (entry != null) {
+			for (String name : entry.subdirs) {
+				Summary sub = summarize(key + "/" + name, summaries);
+				if (summary.patientID == null) summary.patientID = (sub.patientID != null) ? sub.patientID : "";
+				summary.count += sub.count;
+			}
+			for (FileEntry fe : entry.files) {
+				if (!fe.dicom) continue;
+				if (summary.patientID == null) summary.patientID = fe.patientID;
+				summary.count++;
+			}
+		}
+		summaries.put(key, summary);
+		return summary;
+	}
+
+	//Write the element for a directory and its contents.
+	private void write(XMLStreamWriter xml, File dir, String key, boolean showParent, Map<String,Summary> summaries) throws Exception {
+		Summary summary = summaries.get(key);
+		xml.writeStartElement("dir");
+		xml.writeAttribute("name", dir.getName());
+		if (showParent) {
+			File parentFile = dir.getAbsoluteFile().getParentFile();
+			xml.writeAttribute("parent", parentFile.getAbsolutePath());
+		}
+		xml.writeAttribute("count", Integer.toString(summary.count));
+		if (summary.patientID != null) xml.writeAttribute("PatientID", summary.patientID);
+		DirEntry entry = getEntry(key);
+		if (entry != null) {
+			for (String name : entry.subdirs) {
+				write(xml, new File(dir, name), key + "/" + name, false, summaries);
+			}
+			for (FileEntry fe : entry.files) {
+				if (!fe.dicom) continue;
+				xml.writeEmptyElement("DicomObject");
+				writeAttributes(xml, fe);
+			}
+		}
+		xml.writeEndElement();
+	}
+
+	private static void writeAttributes(XMLStreamWriter xml, FileEntry fe) throws Exception {
+		xml.writeAttribute("name", fe.name);
+		xml.writeAttribute("PatientName", fe.patientName);
+		xml.writeAttribute("PatientID", fe.patientID);
+		xml.writeAttribute("StudyDate", fe.studyDate);
+		xml.writeAttribute("Modality", fe.modality);
+		xml.writeAttribute("Series", fe.series);
+	}
+
+	/**
+	 * Bring the index up to date with the files on disk, if
+	 * it has not been refreshed in the last few seconds.
+	 */
+	synchronized void refresh() {
+		long now = System.currentTimeMillis();
+		if ((index == null) || (now - lastRefresh < minRefreshInterval)) return;
+		dirsListed = 0;
+		filesRead = 0;
+		try {
+			refresh(storageRoot, "", now);
+			recman.commit();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to refresh the storage index; rebuilding it", ex);
+			rebuild();
+			return;
+		}
+		lastRefresh = now;
+		if (dirsListed > 0) {
+			logger.debug("Storage index refreshed: "+dirsListed+" directories listed, "+filesRead+" files read in "
+							+(System.currentTimeMillis() - now)+" ms");
+		}
+	}
+
+	private void refresh(File dir, String key, long now) throws Exception {
+		long lastModified = dir.lastModified();
+		DirEntry entry = getEntry(key);
+		if ((entry == null) || (entry.lastModified != lastModified) || filesChanged(dir, entry)) {
+			DirEntry newEntry = scan(dir, entry);
+			//Do not trust a timestamp that may change again within its resolution
+			newEntry.lastModified = (now - lastModified < settleTime) ? 0 : lastModified;
+			if (entry != null) {
+				for (String name : entry.subdirs) {
+					if (!contains(newEntry.subdirs, name)) remove(key + "/" + name);
+				}
+			}
+			index.put(key, newEntry);
+			if (fileCount >= 0) fileCount += newEntry.files.length - ((entry == null) ? 0 : entry.files.length);
+			entry = newEntry;
+		}
+		for (String name : entry.subdirs) {
+			refresh(new File(dir, name), key + "/" + name, now);
+		}
+	}
+
+	//Determine whether any of the files of an entry has been replaced or rewritten.
+	private boolean filesChanged(File dir, DirEntry entry) {
+		for (FileEntry fe : entry.files) {
+			File file = new File(dir, fe.name);
+			if ((fe.size != file.length()) || (fe.lastModified != file.lastModified())) return true;
+		}
+		return false;
+	}
+
+	//List a directory, reading only the files that are not in the old entry.
+	private DirEntry scan(File dir, DirEntry oldEntry) {
+		dirsListed++;
+		List<String> subdirs = new LinkedList<String>();
+		List<FileEntry> files = new LinkedList<FileEntry>();
+		Map<String,FileEntry> oldFiles = new HashMap<String,FileEntry>();
+		Set<String> series = new HashSet<String>();
+		if (oldEntry != null) {
+			for (FileEntry fe : oldEntry.files) {
+				oldFiles.put(fe.name, fe);
+				series.add(fe.series);
+			}
+		}
+		File[] list = dir.listFiles();
+		if (list != null) {
+			for (File file : list) {
+				if (file.isDirectory()) subdirs.add(file.getName());
+				else if (file.isFile()) {
+					FileEntry fe = oldFiles.get(file.getName());
+					if ((fe == null) || (fe.size != file.length()) || (fe.lastModified != file.lastModified())) {
+						DicomHeader header = DicomHeader.getInstance(file);
+						fe = new FileEntry(file, header);
+						filesRead++;
+						//Make a thumbnail of the first image of a new series
+						if ((previews != null) && (header != null) && header.isImage() && series.add(fe.series)) {
+							previews.prefetch(file);
+						}
+					}
+					files.add(fe);
+				}
+			}
+		}
+		DirEntry entry = new DirEntry();
+		entry.subdirs = subdirs.toArray(new String[subdirs.size()]);
+		entry.files = files.toArray(new FileEntry[files.size()]);
+		return entry;
+	}
+
+	//Remove the entries of a directory and its subdirectories.
+	private void remove(String key) throws Exception {
+		DirEntry entry = getEntry(key);
+		if (entry == null) return;
+		for (String name : entry.subdirs) remove(key + "/" + name);
+		index.remove(key);
+		if (fileCount >= 0) fileCount -= entry.files.length;
+	}
+
+	private DirEntry getEntry(String key) {
+		try { return (DirEntry)index.get(key); }
+		catch (Exception unreadable) { return null; }
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (String s : names) {
+			if (s.equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get an XML element string describing the last refresh.
+	 * @return the XML string.
+	 */
+	synchronized String toXML() {
+		return "<index root=\""+storageRoot.getAbsolutePath()+"\" lastRefresh=\""+lastRefresh+"\""
+					+ " dirsListed=\""+dirsListed+"\" filesRead=\""+filesRead+"\""
+					+ " fileCount=\""+fileCount+"\"/>";
+	}
+
+	static class Summary {
+		int count = 0;
+		String patientID = null;
+	}
+
+	static class DirEntry implements Serializable {
+		static final long serialVersionUID = 1L;
+		public long lastModified;
+		public String[] subdirs;
+		public FileEntry[] files;
+	}
+
+	static class FileEntry implements Serializable {
+		static final long serialVersionUID = 1L;
+		public String name;
+		public long size;
+		public long lastModified;
+		public boolean dicom;
+		public String patientName = "";
+		public String patientID = "";
+		public String studyDate = "";
+		public String modality = "";
+		public String series = "";
+		public FileEntry(File file, DicomHeader header) {
+			name = file.getName();
+			size = file.length();
+			lastModified = file.lastModified();
+			dicom = (header != null);
+			if (dicom) {
+				patientName = header.getPatientName();
+				patientID = header.getPatientID();
+				studyDate = header.getStudyDate();
+				modality = header.getModality();
+				series = header.getSeriesNumber();
+			}
+		}
+	}
+}
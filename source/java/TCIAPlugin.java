@@ -2,6 +2,17 @@ package edu.uams.tcia;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.pipeline.PipelineStage;
@@ -27,6 +38,9 @@ import org.w3c.dom.Element;
 public class TCIAPlugin extends AbstractPlugin {
 	
 	static final Logger logger = Logger.getLogger(TCIAPlugin.class);
+	static final int maxFinishedImportJobs = 50;
+	static final int maxClassifierEntries = 200000;
+	static final int maxPendingCopies = 256;
 	
 	String importInputID;
 	String importManifestLogID;
@@ -47,7 +61,24 @@ public class TCIAPlugin extends AbstractPlugin {
 	ExportManifestLogPlugin exportManifestLog;
 	ImportManifestLogPlugin importManifestLog;
 	
-	boolean abortImport = false;
+	int importConcurrency;
+	int importCopyConcurrency;
+	long previewCacheSize;
+	int maxPreviewRenders;
+	ForkJoinPool importPool = null;
+	ThreadPoolExecutor importCopyPool = null;
+	ForkJoinPool movePool = null;
+	FileClassifier classifier = null;
+	SizeEstimator sizeEstimator = null;
+	StorageIndex importIndex = null;
+	StorageIndex anonymizerIndex = null;
+	Dashboard dashboard = null;
+	PreviewCache previews = null;
+	ExecutorService importJobRunner = null;
+	final Map<String,ImportJob> importJobs = new LinkedHashMap<String,ImportJob>();
+	int importJobCount = 0;
+	final Map<String,MoveJob> moveJobs = new LinkedHashMap<String,MoveJob>();
+	int moveJobCount = 0;
 	
 	/**
 	 * IMPORTANT: When the constructor is called, neither the
@@ -69,6 +100,13 @@ public class TCIAPlugin extends AbstractPlugin {
 		this.exportOutputID = element.getAttribute("exportOutputID").trim();
 		this.exportManifestLogID = element.getAttribute("exportManifestLogID").trim();
 		this.importManifestLogID = element.getAttribute("importManifestLogID").trim();
+		int processors = Runtime.getRuntime().availableProcessors();
+		this.importConcurrency = StringUtil.getInt(element.getAttribute("importConcurrency").trim(), processors);
+		if (importConcurrency < 1) importConcurrency = processors;
+		this.importCopyConcurrency = StringUtil.getInt(element.getAttribute("importCopyConcurrency").trim(), importConcurrency);
+		if (importCopyConcurrency < 1) importCopyConcurrency = importConcurrency;
+		this.previewCacheSize = StringUtil.getInt(element.getAttribute("previewCacheSize").trim(), 256) * 1024L * 1024L;
+		this.maxPreviewRenders = Math.max(1, StringUtil.getInt(element.getAttribute("maxPreviewRenders").trim(), 2));
 		logger.info(id+" Plugin instantiated");
 	}
 
@@ -105,10 +143,25 @@ public class TCIAPlugin extends AbstractPlugin {
 		exportInput = getDISStage(exportInputID);
 		exportOutput = getExportStage(exportOutputID);
 		
+		//Open the cache of image previews and the indexes of the storage stages,
+		//which make thumbnails of the new series they find
+		previews = new PreviewCache(new File(root, "previews"), previewCacheSize, maxPreviewRenders);
+		if (importStorage != null) {
+			importIndex = new StorageIndex(importStorage.getRoot(), new File(root, "importIndex"));
+			importIndex.previews = previews;
+		}
+		if (anonymizerStorage != null) {
+			anonymizerIndex = new StorageIndex(anonymizerStorage.getRoot(), new File(root, "anonymizerIndex"));
+			anonymizerIndex.previews = previews;
+		}
+		
 		//Get the ManifestLogs
 		importManifestLog = getImportManifestLogPlugin(importManifestLogID);
 		exportManifestLog = getExportManifestLogPlugin(exportManifestLogID);
 		
+		//Start the snapshots of the dashboard
+		dashboard = new Dashboard(this);
+		
 		//Install the TCIAServlet
 		Configuration config = Configuration.getInstance();
 		HttpServer server = config.getServer();
@@ -122,9 +175,43 @@ public class TCIAPlugin extends AbstractPlugin {
 		try { mniFile.createNewFile(); }
 		catch (Exception ex) { logger.warn("Unable to create "+mniFile); }
 				
+		//Create the pools shared by the import jobs: one to walk and parse
+		//the files, and one to copy them, which makes the parse threads do
+		//the copies themselves when its queue is full. The move jobs have
+		//their own pool, so a hand-off does not wait behind an import.
+		importPool = new ForkJoinPool(importConcurrency);
+		importCopyPool = new ThreadPoolExecutor(importCopyConcurrency, importCopyConcurrency, 0, TimeUnit.MILLISECONDS,
+								new ArrayBlockingQueue<Runnable>(maxPendingCopies),
+								new ThreadPoolExecutor.CallerRunsPolicy());
+		movePool = new ForkJoinPool(importConcurrency);
+		importJobRunner = Executors.newCachedThreadPool();
+		
+		//Create the cache of file classifications for the browser and the import jobs
+		classifier = new FileClassifier(maxClassifierEntries, importConcurrency);
+		sizeEstimator = new SizeEstimator(importConcurrency);
+				
 		logger.info("TCIAPlugin started with context \""+id+"\"");
 	}
 	
+	/**
+	 * Stop the plugin, cancelling any import jobs.
+	 */
+	public synchronized void shutdown() {
+		cancelImportJobs();
+		cancelMoveJobs();
+		if (importJobRunner != null) importJobRunner.shutdownNow();
+		if (importPool != null) importPool.shutdownNow();
+		if (importCopyPool != null) importCopyPool.shutdownNow();
+		if (movePool != null) movePool.shutdownNow();
+		if (classifier != null) classifier.shutdown();
+		if (sizeEstimator != null) sizeEstimator.shutdown();
+		if (dashboard != null) dashboard.shutdown();
+		if (previews != null) previews.shutdown();
+		if (importIndex != null) importIndex.close();
+		if (anonymizerIndex != null) anonymizerIndex.close();
+		super.shutdown();
+	}
+	
 	private DirectoryStorageService getDSSStage(String id) {
 		PipelineStage stage = Configuration.getInstance().getRegisteredStage(id);
 		if (stage == null) {
@@ -279,17 +366,179 @@ public class TCIAPlugin extends AbstractPlugin {
 	}
 	
 	/**
-	 * Set the abortImport flag.
+	 * Get the index of the objects in the import storage.
+	 */
+	StorageIndex getImportIndex() {
+		return importIndex;
+	}
+	
+	/**
+	 * Get the index of the objects in the anonymizer storage.
+	 */
+	StorageIndex getAnonymizerIndex() {
+		return anonymizerIndex;
+	}
+	
+	/**
+	 * Get the cache of image previews.
+	 */
+	PreviewCache getPreviews() {
+		return previews;
+	}
+	
+	/**
+	 * Get the shared snapshot of the dashboard.
+	 */
+	Dashboard getDashboard() {
+		return dashboard;
+	}
+	
+	/**
+	 * Get the estimator of the space required by an import.
+	 */
+	SizeEstimator getSizeEstimator() {
+		return sizeEstimator;
+	}
+	
+	/**
+	 * Get the cache of file classifications.
+	 */
+	FileClassifier getClassifier() {
+		return classifier;
+	}
+	
+	/**
+	 * Start a job to submit files to the import pipeline in the background.
+	 * @param files the files and directories to submit.
+	 * @return the job.
+	 */
+	synchronized ImportJob startImportJob(List<File> files) {
+		DirectoryImportService dis = getImportInput();
+		String jobID = Integer.toString(++importJobCount);
+		ImportJob job = new ImportJob(jobID, files, dis.getImportDirectory(), dis.getQueueManager(),
+										importPool, importCopyPool, classifier);
+		//Use the totals from the preflight check, if they are known, for the progress
+		long[] size = sizeEstimator.getExactSize(files);
+		if (size != null) job.setSize(size[0], size[1]);
+		importJobs.put(jobID, job);
+		pruneImportJobs();
+		importJobRunner.execute(job);
+		return job;
+	}
+	
+	/**
+	 * Get an import job.
+	 * @param jobID the ID of the job.
+	 * @return the job, or null if there is no job with that ID.
 	 */
-	public synchronized void setAbortImport(boolean abortImport) {
-		this.abortImport = abortImport;
+	synchronized ImportJob getImportJob(String jobID) {
+		return importJobs.get(jobID);
 	}
 	
 	/**
-	 * Get the abortImport flag.
+	 * Get all the import jobs, oldest first.
 	 */
-	public synchronized boolean getAbortImport() {
-		return this.abortImport;
+	synchronized List<ImportJob> getImportJobs() {
+		return new LinkedList<ImportJob>(importJobs.values());
+	}
+	
+	/**
+	 * Cancel all the import jobs that have not finished.
+	 */
+	synchronized void cancelImportJobs() {
+		for (ImportJob job : importJobs.values()) job.cancel();
+	}
+	
+	//Forget the oldest finished jobs beyond the retention limit.
+	private void pruneImportJobs() {
+		int finished = 0;
+		for (ImportJob job : importJobs.values()) {
+			if (job.isFinished()) finished++;
+		}
+		Iterator<ImportJob> it = importJobs.values().iterator();
+		while ((finished > maxFinishedImportJobs) && it.hasNext()) {
+			if (it.next().isFinished()) {
+				it.remove();
+				finished--;
+			}
+		}
+	}
+	
+	/**
+	 * Start a job to move files from a storage stage to the input
+	 * of the next pipeline in the background.
+	 * @param kind MoveJob.ANONYMIZE to move files from the import storage to the
+	 * anonymizer input, or MoveJob.EXPORT to move files from the anonymizer storage
+	 * to the export input.
+	 * @param file the file or directory to move.
+	 * @return the job.
+	 */
+	synchronized MoveJob startMoveJob(String kind, File file) {
+		String jobID = Integer.toString(++moveJobCount);
+		MoveJob job;
+		if (kind.equals(MoveJob.EXPORT)) {
+			job = new MoveJob(jobID, kind, file, getExportInput().getImportDirectory(), movePool,
+								exportManifestLog, anonymizerIndex);
+		}
+		else {
+			job = new MoveJob(jobID, kind, file, getAnonymizerInput().getImportDirectory(), movePool,
+								exportManifestLog, importIndex);
+		}
+		moveJobs.put(jobID, job);
+		pruneMoveJobs();
+		importJobRunner.execute(job);
+		return job;
+	}
+	
+	/**
+	 * Get a move job.
+	 * @param jobID the ID of the job.
+	 * @return the job, or null if there is no job with that ID.
+	 */
+	synchronized MoveJob getMoveJob(String jobID) {
+		return moveJobs.get(jobID);
+	}
+	
+	/**
+	 * Get all the move jobs, oldest first.
+	 */
+	synchronized List<MoveJob> getMoveJobs() {
+		return new LinkedList<MoveJob>(moveJobs.values());
+	}
+	
+	/**
+	 * Get the number of move jobs of one kind that are queued or running.
+	 * @param kind MoveJob.ANONYMIZE or MoveJob.EXPORT.
+	 * @return the number of jobs that have not finished.
+	 */
+	synchronized int getActiveMoveJobCount(String kind) {
+		int n = 0;
+		for (MoveJob job : moveJobs.values()) {
+			if (!job.isFinished() && job.kind.equals(kind)) n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * Cancel all the move jobs that have not finished.
+	 */
+	synchronized void cancelMoveJobs() {
+		for (MoveJob job : moveJobs.values()) job.cancel();
+	}
+	
+	//Forget the oldest finished move jobs beyond the retention limit.
+	private void pruneMoveJobs() {
+		int finished = 0;
+		for (MoveJob job : moveJobs.values()) {
+			if (job.isFinished()) finished++;
+		}
+		Iterator<MoveJob> it = moveJobs.values().iterator();
+		while ((finished > maxFinishedImportJobs) && it.hasNext()) {
+			if (it.next().isFinished()) {
+				it.remove();
+				finished--;
+			}
+		}
 	}
 	
 }
\ No newline at end of file
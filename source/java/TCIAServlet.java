@@ -5,15 +5,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
 import java.util.Properties;
 import javax.swing.filechooser.FileSystemView;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.log4j.Logger;
 import org.apache.poi.ss.usermodel.DateUtil;
 import org.rsna.ctp.Configuration;
-import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
 import org.rsna.ctp.pipeline.AbstractQueuedExportService;
@@ -25,6 +29,7 @@ import org.rsna.ctp.stdstages.anonymizer.LookupTable;
 import org.rsna.ctp.stdstages.DicomAnonymizer;
 import org.rsna.ctp.stdstages.DirectoryImportService;
 import org.rsna.ctp.stdstages.DirectoryStorageService;
+import org.rsna.ctp.stdstages.PosdaExportService;
 import org.rsna.multipart.UploadedFile;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -33,6 +38,7 @@ import org.rsna.servlets.Servlet;
 import org.rsna.util.ExcelWorksheet;
 import org.rsna.util.FileUtil;
 import org.rsna.util.HttpUtil;
+import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.*;
 
@@ -46,6 +52,10 @@ public class TCIAServlet extends Servlet {
 	TCIAPlugin tciaPlugin = null;
 	ExportManifestLogPlugin exportManifestPlugin = null;
 	ImportManifestLogPlugin importManifestPlugin = null;
+	ListingWriter listing = null;
+	
+	static final String[] directorySortFields = { "name", "size", "modified" };
+	static final int directoryChunkSize = 256;
 
 	/**
 	 * Construct a TCIAServlet. Note: the TCIAServlet
@@ -102,31 +112,47 @@ public class TCIAServlet extends Servlet {
 				String function = path.element(1);
 				if (function.equals("listImport")) {
 					//List the files in the import pipeline
-					DirectoryStorageService stage = tciaPlugin.getImportStorage();
-					File dir = stage.getRoot();
-					Element el = listFiles(dir);
-					res.write(XmlUtil.toString(el));
+					listStorage(req, res, tciaPlugin.getImportIndex());
 				}
 				else if (function.equals("listAnonymized")) {
 					//List the files in the anonymizer pipeline
-					DirectoryStorageService stage = tciaPlugin.getAnonymizerStorage();
-					File dir = stage.getRoot();
-					Element el = listFiles(dir);
-					res.write(XmlUtil.toString(el));
+					listStorage(req, res, tciaPlugin.getAnonymizerIndex());
 				}
 				else if (function.equals("anonymize")) {
 					//Move files from the importStorage stage to the anonymizerInput stage.
-					DirectoryStorageService fromStage = tciaPlugin.getImportStorage();
-					DirectoryImportService toStage = tciaPlugin.getAnonymizerInput();
-					boolean ok = moveFile(fromStage.getRoot(), toStage.getImportDirectory(), req.getParameter("file",""), true);
-					res.write( ok ? "<OK/>" : "<NOTOK/>" );
+					//The files are moved in the background; the progress is available from getMoveJob.
+					File file = getStorageFile(tciaPlugin.getImportStorage().getRoot(), req.getParameter("file",""));
+					if (file != null) {
+						MoveJob job = tciaPlugin.startMoveJob(MoveJob.ANONYMIZE, file);
+						res.write( "<OK job=\"" + job.id + "\"/>" );
+					}
+					else res.write( "<NOTOK/>" );
 				}
 				else if (function.equals("export")) {
 					//Move files from the AnonymizerStorage stage to the ExportInput stage.
-					DirectoryStorageService fromStage = tciaPlugin.getAnonymizerStorage();
-					DirectoryImportService toStage = tciaPlugin.getExportInput();
-					boolean ok = exportFile(fromStage.getRoot(), toStage.getImportDirectory(), req.getParameter("file",""));
-					res.write( ok ? "<OK/>" : "<NOTOK/>" );
+					//The files are moved in the background; the progress is available from getMoveJob.
+					File file = getStorageFile(tciaPlugin.getAnonymizerStorage().getRoot(), req.getParameter("file",""));
+					if (file != null) {
+						MoveJob job = tciaPlugin.startMoveJob(MoveJob.EXPORT, file);
+						res.write( "<OK job=\"" + job.id + "\"/>" );
+					}
+					else res.write( "<NOTOK/>" );
+				}
+				else if (function.equals("getMoveJob")) {
+					MoveJob job = tciaPlugin.getMoveJob(req.getParameter("job", ""));
+					if (job != null) res.write( job.toXML() );
+					else res.setResponseCode(res.notfound);
+				}
+				else if (function.equals("listMoveJobs")) {
+					StringBuffer sb = new StringBuffer("<jobs>");
+					for (MoveJob job : tciaPlugin.getMoveJobs()) sb.append(job.toXML());
+					sb.append("</jobs>");
+					res.write( sb.toString() );
+				}
+				else if (function.equals("cancelMove")) {
+					MoveJob job = tciaPlugin.getMoveJob(req.getParameter("job", ""));
+					if (job != null) job.cancel();
+					res.write( (job != null) ? "<OK/>" : "<NOTOK/>" );
 				}
 				else if (function.equals("getQuarantineURL")) {
 					//Return the URL of the DicomAnonymizer quarantine servlet
@@ -288,98 +314,119 @@ public class TCIAServlet extends Servlet {
 				}
 				else if (function.equals("getExportQueueSize")) {
 					AbstractQueuedExportService exportService = tciaPlugin.getExportOutput();
-					int size = exportService.getQueueManager().size();
-					res.write("<queue stage=\""+exportService.getName()+"\" size=\""+size+"\"/>");
+					if (exportService instanceof PosdaExportService) {
+						int[] lanes = ((PosdaExportService)exportService).getLaneSizes();
+						int size = lanes[0] + lanes[1] + lanes[2];
+						res.write("<queue stage=\""+exportService.getName()+"\" size=\""+size+"\""
+									+" control=\""+lanes[0]+"\" small=\""+lanes[1]+"\" bulk=\""+lanes[2]+"\"/>");
+					}
+					else {
+						int size = exportService.getQueueManager().size();
+						res.write("<queue stage=\""+exportService.getName()+"\" size=\""+size+"\"/>");
+					}
 				}
 				else if (function.equals("listFiles")) {
+					File dir = new File(req.getParameter("dir","/")).getAbsoluteFile();
+					boolean dcmOnly = req.hasParameter("dcm");
+					ListingQuery query = ListingQuery.getInstance(req, directorySortFields);
 					try {
-						boolean dcmOnly = req.hasParameter("dcm");
-						int acceptedFileCount = 0;
-						int skippedFileCount = 0;
-						File dir = new File(req.getParameter("dir","/")).getAbsoluteFile();
-						File parent = dir.getParentFile();
-						File[] files = dir.listFiles();
-						Document doc = XmlUtil.getDocument();
-						Element root = doc.createElement("dir");
-						String name = dir.getName();
-						if (name.equals("")) name = dir.getAbsolutePath();
-						root.setAttribute("name", name);
-						root.setAttribute(
-							"parent", 
-							((parent == null) ? "" : parent.getAbsolutePath())
-						);
-						doc.appendChild(root);
-						for (File file : files) {
-							if (file.isDirectory()) {
-								Element e = doc.createElement("dir");
-								e.setAttribute("name", file.getName());
-								root.appendChild(e);
-							}
-						}
-						for (File file : files) {
-							if (file.isFile()) {
-								boolean isDICOM = isDICOM(file);
-								if (!dcmOnly || isDICOM) {
-									acceptedFileCount++;
-									Element e = doc.createElement("file");
-									e.setAttribute("name", file.getName());
-									root.appendChild(e);
-								}
-								else if (dcmOnly) skippedFileCount++;
-							}
-						}
-						root.setAttribute("acceptedFileCount", Integer.toString(acceptedFileCount));
-						root.setAttribute("skippedFileCount", Integer.toString(skippedFileCount));
-						res.write(XmlUtil.toPrettyString(root));
+						listing = new ListingWriter();
+						if (query == null) listDirectory(listing.xml, dir, dcmOnly);
+						else listDirectory(listing.xml, dir, dcmOnly, query);
+						res.write(listing.close());
+					}
+					catch (Exception ex) {
+						if (listing != null) listing.discard();
+						listing = null;
+						res.write("<dir/>");
 					}
-					catch (Exception ex) { res.write("<dir/>"); }
 				}
 				else if (function.equals("getSpaceRequired")) {
-					FileInfo info = new FileInfo();
+					//The totals are exact if the trees can be walked quickly or have been
+					//walked recently; otherwise they are estimates with a 95% confidence
+					//margin, and the walks continue in the background.
+					SizeEstimator estimator = tciaPlugin.getSizeEstimator();
 					String pathseq = req.getParameter("file", req.getParameter("files"));
 					String[] paths = pathseq.split("\\|");
+					long files = 0;
+					long bytes = 0;
+					long margin = 0;
+					boolean exact = true;
 					for (String p : paths) {
 						File file = new File(p);
-						if (file.exists()) info.add(getInfo(file));
+						if (file.exists()) {
+							SizeEstimator.Estimate estimate = estimator.estimate(file);
+							files += estimate.files;
+							bytes += estimate.bytes;
+							margin += estimate.margin;
+							exact &= estimate.exact;
+						}
 					}
 					File root = new File("/");
 					String name = root.getAbsolutePath();
 					long oneMB = 1024 * 1024;
 					long free = root.getUsableSpace()/oneMB;
 					long total = root.getTotalSpace() / oneMB;
-					long size = info.size / oneMB;
-					int n = info.n;
+					long size = bytes / oneMB;
 					String units = "MB";
 					
 					res.write(
-							"<space partition=\""+name+"\" files=\""+n+"\"" +
+							"<space partition=\""+name+"\" files=\""+files+"\"" +
 							" required=\""+size+"\" available=\""+free+"\"" +
-							" total=\""+total+"\" units=\""+units+"\"/>");
+							" total=\""+total+"\" units=\""+units+"\"" +
+							" exact=\""+(exact ? "yes" : "no")+"\"" +
+							" requiredLow=\""+(Math.max(0, bytes - margin) / oneMB)+"\"" +
+							" requiredHigh=\""+((bytes + margin) / oneMB)+"\"/>");
 				}
 				else if (function.equals("submitFile") || function.equals("submitFiles")) {
-					Status status = new Status();
-					tciaPlugin.setAbortImport(false);
+					//Start a background job and return its ID;
+					//the progress is available from getImportJob.
+					String pathseq = req.getParameter("file", req.getParameter("files", ""));
+					List<File> files = new LinkedList<File>();
+					for (String p : pathseq.split("\\|")) {
+						File file = new File(p);
+						if (!p.equals("") && file.exists()) files.add(file);
+					}
 					try {
-						String pathseq = req.getParameter("file", req.getParameter("files"));
-						String[] paths = pathseq.split("\\|");
-						DirectoryImportService dis = tciaPlugin.getImportInput();
-						File destdir = dis.getImportDirectory();
-						QueueManager queue = dis.getQueueManager();
-						for (String p : paths) {
-							File file = new File(p);
-							if (file.exists()) submitFile(status, file, destdir, queue, tciaPlugin);
-						}
+						ImportJob job = tciaPlugin.startImportJob(files);
+						res.write( "<OK job=\"" + job.id + "\"/>" );
+					}
+					catch (Exception ex) {
+						logger.warn("Unable to start an import job", ex);
+						res.write( "<NOTOK/>" );
 					}
-					catch (Exception ex) { status.update( false ); }
-					res.write( status.success ? "<OK" : "<NOTOK" ); 
-					res.write( " acceptedFileCount=\"" + status.acceptedFileCount + "\"" );
-					res.write( " skippedFileCount=\"" + status.skippedFileCount + "\"" );
-					res.write( "/>" ); 
+				}
+				else if (function.equals("getImportJob")) {
+					ImportJob job = tciaPlugin.getImportJob(req.getParameter("job", ""));
+					if (job != null) res.write( job.toXML() );
+					else res.setResponseCode(res.notfound);
+				}
+				else if (function.equals("listImportJobs")) {
+					StringBuffer sb = new StringBuffer("<jobs>");
+					for (ImportJob job : tciaPlugin.getImportJobs()) sb.append(job.toXML());
+					sb.append("</jobs>");
+					res.write( sb.toString() );
+				}
+				else if (function.equals("cancelImport")) {
+					ImportJob job = tciaPlugin.getImportJob(req.getParameter("job", ""));
+					if (job != null) job.cancel();
+					res.write( (job != null) ? "<OK/>" : "<NOTOK/>" );
 				}
 				else if (function.equals("abortImport")) {
-					tciaPlugin.setAbortImport(true);
+					//Cancel all the import jobs
+					tciaPlugin.cancelImportJobs();
 					res.write( "<OK/>" );
 				}
+				else if (function.equals("getIndexStatus")) {
+					res.write( "<indexes>" + tciaPlugin.getImportIndex().toXML()
+								+ tciaPlugin.getAnonymizerIndex().toXML() + "</indexes>" );
+				}
+				else if (function.equals("getClassifierStatus")) {
+					res.write( tciaPlugin.getClassifier().toXML() );
+				}
+				else if (function.equals("getPreviewStatus")) {
+					res.write( tciaPlugin.getPreviews().toXML() );
+				}
 				else if (function.equals("listElements")) {
 					File file = new File(req.getParameter("file"));
 					try {
@@ -401,13 +448,17 @@ public class TCIAServlet extends Servlet {
 					}
 				}
 				else if (function.equals("getImage")) {
+					//The preview is served from the cache; thumbnail=yes requests the small
+					//version rendered in the background for new series.
 					File file = new File(req.getParameter("file"));
+					int[] params = req.getParameter("thumbnail", "no").equals("yes")
+											? PreviewCache.thumbnail.clone() : PreviewCache.preview.clone();
+					params[0] = StringUtil.getInt(req.getParameter("frame", "0"), 0);
 					try {
-						DicomObject dob = new DicomObject(file);
-						File jpeg = File.createTempFile("DCM-", ".jpeg");
-						dob.saveAsJPEG(jpeg, 0, 1024, 512, -1);
+						byte[] jpeg = tciaPlugin.getPreviews().get(file, params);
+						if (jpeg == null) throw new Exception("Not an image");
 						res.write(jpeg);
-						res.setContentType(jpeg);
+						res.setContentType("jpeg");
 					}
 					catch (Exception ex) { 
 						if (!file.exists()) res.setResponseCode(res.notfound); 
@@ -424,13 +475,7 @@ public class TCIAServlet extends Servlet {
 					res.write( "<OK/>" );
 				}
 				else if (function.equals("exportStatus")) {
-					DirectoryImportService dis = tciaPlugin.getExportInput();
-					AbstractQueuedExportService hes = tciaPlugin.getExportOutput();
-					int n = FileUtil.getFileCount(dis.getImportDirectory()) 
-							+ dis.getQueueManager().size()
-							+ (hes.hasCache() ? hes.getCacheManager().size() : 0)
-							+ hes.getQueueManager().size();
-					if (n > 0) res.write("<ACTIVE/>");
+					if (Dashboard.isExportActive(tciaPlugin)) res.write("<ACTIVE/>");
 					else res.write("<INACTIVE/>");
 				}
 				else if (function.equals("restart")) {
@@ -453,8 +498,11 @@ public class TCIAServlet extends Servlet {
 					importManifestLog.clear();
 					clearDirectory(tciaPlugin.getImportStorage().getRoot());
 					clearDirectory(tciaPlugin.getAnonymizerStorage().getRoot());
+					tciaPlugin.getImportIndex().invalidate();
+					tciaPlugin.getAnonymizerIndex().invalidate();
 					tciaPlugin.getAnonymizer().getQuarantine().deleteAll();
 					exportManifestLog.initializeAnonymizerPipelineCounts();
+					tciaPlugin.getDashboard().update();
 					res.write("<OK/>");
 				}
 				else if (function.equals("resetHistory")) {
@@ -463,23 +511,7 @@ public class TCIAServlet extends Servlet {
 					res.write("<OK/>");
 				}
 				else if (function.equals("dashboard")) {
-					ExportManifestLogPlugin exportManifestLog = tciaPlugin.getExportManifestLog();
-					Document doc = XmlUtil.getDocument();
-					Element root = doc.createElement("Dashboard");
-					doc.appendChild(root);
-					
-					Element impsts = doc.createElement("ImportStatus");
-					impsts.setAttribute("storedFiles", 
-										Integer.toString(FileUtil.getFileCount(tciaPlugin.getImportStorage().getRoot())));
-					root.appendChild(impsts);
-					
-					Element ansts = (Element)doc.importNode(exportManifestLog.getManifestStatus().getDocumentElement(), true);
-					doc.renameNode(ansts, ansts.getNamespaceURI(), "AnonymizerStatus");
-					root.appendChild(ansts);
-					ansts.setAttribute("storedFiles", 
-										Integer.toString(FileUtil.getFileCount(tciaPlugin.getAnonymizerStorage().getRoot())));					
-					
-					res.write(XmlUtil.toPrettyString(root));
+					res.write(tciaPlugin.getDashboard().getSnapshot());
 				}
 				else {
 					//Unknown function
@@ -496,6 +528,9 @@ public class TCIAServlet extends Servlet {
 		res.disableCaching();
 		res.setContentEncoding(req);
 		res.send();
+		
+		//Delete the file of a streamed listing now that it has been sent
+		if (listing != null) listing.file.delete();
 	}
 
 	/**
@@ -548,15 +583,6 @@ public class TCIAServlet extends Servlet {
 		res.send();
 	}
 	
-	private boolean isDICOM(File file) {
-		try {
-			DicomObject dob = new DicomObject(file);
-			return true;
-		}
-		catch (Exception ex) { }
-		return false;
-	}
-	
 	private boolean updateLUT(File lutFile, File spreadsheetFile) {
 		LookupTable lut = LookupTable.getInstance(lutFile);
 		Properties props = lut.getProperties();
@@ -613,211 +639,133 @@ public class TCIAServlet extends Servlet {
 		return ok;
 	}
 	
-	//Move files from a storage directory to an import directory for an anonymizer pipeline.
-	//If the path identifies a file, move the file.
-	//If the path identifies a directory move the contents of the
-	//directory and all its subdirectories.
-	//Note that the destination is a flat directory (with no substructure).
-	private boolean moveFile(File fromDir, File toDir, String path, boolean log) {
-		if (path.equals("")) return false;
+	//Get a file or directory in a storage stage from its path relative to
+	//the parent of the root of the stage, or null if it does not exist.
+	private File getStorageFile(File fromDir, String path) {
+		if (path.equals("")) return null;
 		File fromParent = (new File(fromDir.getAbsolutePath())).getParentFile();
 		File file = new File(fromParent, path);
-		if (!file.exists()) return false;
-		return moveFile(file, toDir, true, log);
+		return file.exists() ? file : null;
 	}
 	
-	private boolean moveFile(File file, File toDir, boolean isRoot, boolean log) {
-		boolean ok = true;
-		if (file.isDirectory()) {
-			for (File f : file.listFiles()) {
-				ok &= moveFile(f, toDir, false, log);
-			}
-			if (!isRoot && (file.listFiles().length == 0)) {
-				file.delete();
-			}
+	//List the files in a storage stage from its index. The listing is the
+	//complete tree unless the request has paging parameters, in which case
+	//it is a page of a flat list. The rebuild parameter forces a rebuild.
+	private void listStorage(HttpRequest req, HttpResponse res, StorageIndex index) {
+		ListingQuery query = ListingQuery.getInstance(req, StorageIndex.sortFields);
+		try {
+			if (req.hasParameter("rebuild")) index.rebuild();
+			listing = new ListingWriter();
+			if (query == null) index.write(listing.xml);
+			else index.write(listing.xml, query);
+			res.write(listing.close());
 		}
-		else if (file.isFile()) {
-			FileObject fob = new FileObject(file);
-			ok = fob.moveToDirectory(toDir);
-			if (log) exportManifestPlugin.incrementQueuedInstance();
+		catch (Exception ex) {
+			logger.warn("Unable to list "+index.storageRoot, ex);
+			if (listing != null) listing.discard();
+			listing = null;
+			res.write("<DicomFiles/>");
 		}
-		return ok;
-	}
-
-	//Move files from a storage directory to an import directory for an export pipeline.
-	//If the path identifies a file, move the file.
-	//If the path identifies a directory move the contents of the
-	//directory and all its subdirectories.
-	//Note that the destination is a flat directory (with no substructure).
-	private boolean exportFile(File fromDir, File toDir, String path) {
-		if (path.equals("")) return false;
-		File fromParent = (new File(fromDir.getAbsolutePath())).getParentFile();
-		File file = new File(fromParent, path);
-		if (!file.exists()) return false;
-		return exportFile(file, toDir, true);
 	}
 	
-	private boolean exportFile(File file, File toDir, boolean isRoot) {
-		boolean ok = true;
-		if (file.isDirectory()) {
-			for (File f : file.listFiles()) {
-				ok &= exportFile(f, toDir, false);
-			}
-			if (!isRoot && (file.listFiles().length == 0)) {
-				file.delete();
-			}
+	//List a directory for the file browser: the subdirectories, then the files
+	//(only the DICOM files if dcmOnly is set). The files are classified in parallel,
+	//using the cache, and the subdirectories are then prefetched for the next navigation.
+	private void listDirectory(XMLStreamWriter xml, File dir, boolean dcmOnly) throws Exception {
+		File[] files = dir.listFiles();
+		FileClassifier classifier = tciaPlugin.getClassifier();
+		boolean[] dicom = dcmOnly ? classifier.classify(files) : null;
+		List<File> subdirs = new LinkedList<File>();
+		int acceptedFileCount = 0;
+		int skippedFileCount = 0;
+		for (int i=0; i<files.length; i++) {
+			if (files[i].isDirectory()) subdirs.add(files[i]);
+			else if (!dcmOnly || dicom[i]) acceptedFileCount++;
+			else skippedFileCount++;
 		}
-		else if (file.isFile()) {
-			FileObject fob = FileObject.getInstance(file);
-			ok = fob.moveToDirectory(toDir);
-			if (fob instanceof DicomObject) {
-				exportManifestPlugin.logExportedObject( (DicomObject)fob );
-			}
+		if (dcmOnly) classifier.prefetch(subdirs.toArray(new File[subdirs.size()]));
+		startDirectory(xml, dir);
+		xml.writeAttribute("acceptedFileCount", Integer.toString(acceptedFileCount));
+		xml.writeAttribute("skippedFileCount", Integer.toString(skippedFileCount));
+		for (File file : subdirs) {
+			xml.writeEmptyElement("dir");
+			xml.writeAttribute("name", file.getName());
 		}
-		return ok;
-	}
-
-	//Submit DICOM files to an import directory.
-	//If the supplied file is a file, copy the file.
-	//If the supplied file is a directory copy the contents of the
-	//directory and all its subdirectories.
-	//Note that the destination is a flat directory (with no substructure).
-	private void submitFile(Status status, File file, File toDir, QueueManager queue, TCIAPlugin tciaPlugin) {
-		if (file.exists() && !tciaPlugin.getAbortImport()) {
-			if (file.isDirectory()) {
-				File[] files = file.listFiles();
-				for (File f : files) {
-					submitFile(status, f, toDir, queue, tciaPlugin);
-				}
-			}
-			else if (file.isFile()) {
-				try {
-					DicomObject dob = null;
-					try { dob = new DicomObject(file); }
-					catch (Exception ex) { 
-						status.countSkippedFile();
-						return;
-					}
-					File destFile = File.createTempFile("DCM-", ".partial", toDir);
-					boolean ok = dob.copyTo(destFile);
-					status.update( ok );
-					if (ok) status.countAcceptedFile();
-					queue.enqueue(destFile);
-					destFile.delete();
-				}
-				catch (Exception ex) { status.update( false ); }
+		for (int i=0; i<files.length; i++) {
+			if (files[i].isFile() && (!dcmOnly || dicom[i])) {
+				xml.writeEmptyElement("file");
+				xml.writeAttribute("name", files[i].getName());
 			}
 		}
+		xml.writeEndElement();
 	}
 	
-	class Status {
-		public int acceptedFileCount = 0;
-		public int skippedFileCount = 0;
-		public boolean success = true;
-		public Status() { }
-		public void countAcceptedFile() {
-			acceptedFileCount++;
-		}
-		public void countSkippedFile() {
-			skippedFileCount++;
-		}
-		public void update(boolean ok) {
-			success &= ok;
-		}
-	}
-		
-	
-	//List files
-	private Element listFiles(File dir) {
+	//List a page of a directory for the file browser. The entries are read from
+	//the directory in chunks, so the memory used depends only on the page size.
+	private void listDirectory(XMLStreamWriter xml, File dir, boolean dcmOnly, ListingQuery query) throws Exception {
+		FileClassifier classifier = tciaPlugin.getClassifier();
+		int acceptedFileCount = 0;
+		int skippedFileCount = 0;
+		DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(dir.toPath());
 		try {
-			Document doc = XmlUtil.getDocument();
-			Element root = doc.createElement("DicomFiles");
-			doc.appendChild(root);
-			int count = listFiles(root, dir, true);
-			root.setAttribute("count", Integer.toString(count));
-			return root;
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to create XML document", ex);
-			return null;
-		}
-	}
-	
-	private int listFiles(Element parent, File file, boolean showParent) {
-		Document doc = parent.getOwnerDocument();
-		int count = 0;
-		if (file.isDirectory()) {
-			Element dirEl = doc.createElement("dir");
-			dirEl.setAttribute("name", file.getName());
-			if (showParent) {
-				File parentFile = file.getParentFile();
-				dirEl.setAttribute("parent", parentFile.getAbsolutePath());
-			}
-			parent.appendChild(dirEl);
-			for (File f : file.listFiles()) {
-				count += listFiles(dirEl, f, false);
-			}
-			dirEl.setAttribute("count", Integer.toString(count));
-			Element ch = (Element)dirEl.getFirstChild();
-			if (ch != null) {
-				String ptid = ch.getAttribute("PatientID");
-				dirEl.setAttribute("PatientID", ptid);
-			}
-		}
-		else if (file.isFile()) {
-			try {
-				DicomObject dob = new DicomObject(file);
-				Element fileEl = doc.createElement("DicomObject");
-				fileEl.setAttribute("name", file.getName());
-				setAttributes(fileEl, dob);
-				parent.appendChild(fileEl);
-				count++;
+			Iterator<java.nio.file.Path> it = stream.iterator();
+			while (it.hasNext()) {
+				List<File> chunk = new LinkedList<File>();
+				while (it.hasNext() && (chunk.size() < directoryChunkSize)) chunk.add(it.next().toFile());
+				File[] files = chunk.toArray(new File[chunk.size()]);
+				boolean[] dicom = dcmOnly ? classifier.classify(files) : null;
+				for (int i=0; i<files.length; i++) {
+					File file = files[i];
+					String name = file.getName();
+					if (file.isDirectory()) {
+						query.offer(0, (query.sort.equals("name") ? name : ""), name, file);
+					}
+					else if (!dcmOnly || dicom[i]) {
+						acceptedFileCount++;
+						String value = name;
+						if (query.sort.equals("size")) value = ListingQuery.numeric(Long.toString(file.length()));
+						else if (query.sort.equals("modified")) value = ListingQuery.numeric(Long.toString(file.lastModified()));
+						query.offer(1, value, name, file);
+					}
+					else skippedFileCount++;
+				}
 			}
-			catch (Exception skip) { logger.warn("oops", skip); }
 		}
-		return count;
-	}
-	
-	private FileInfo getInfo(File file) {
-		FileInfo info = new FileInfo();
-		if ((file != null) && file.exists()) {
-			if (file.isFile()) {
-				info.add(file.length());
+		finally { stream.close(); }
+		List<ListingQuery.Item> page = query.getPage();
+		List<File> subdirs = new LinkedList<File>();
+		startDirectory(xml, dir);
+		xml.writeAttribute("acceptedFileCount", Integer.toString(acceptedFileCount));
+		xml.writeAttribute("skippedFileCount", Integer.toString(skippedFileCount));
+		xml.writeAttribute("total", Integer.toString(query.total));
+		xml.writeAttribute("count", Integer.toString(page.size()));
+		String next = query.getNextCursor();
+		if (next != null) xml.writeAttribute("next", next);
+		for (ListingQuery.Item item : page) {
+			File file = (File)item.payload;
+			if (item.group == 0) {
+				subdirs.add(file);
+				xml.writeEmptyElement("dir");
+				xml.writeAttribute("name", file.getName());
 			}
 			else {
-				File[] files = file.listFiles();
-				for (File f : files) {
-					try { info.add(getInfo(f)); }
-					catch (Exception ex) {
-						logger.warn("Unable to getInfo for "+f);
-					}
-				}
+				xml.writeEmptyElement("file");
+				xml.writeAttribute("name", file.getName());
+				xml.writeAttribute("size", Long.toString(file.length()));
+				xml.writeAttribute("modified", Long.toString(file.lastModified()));
 			}
 		}
-		return info;
-	}
-	
-	class FileInfo {
-		public int n = 0;
-		public long size = 0;
-		public FileInfo() { }
-		public FileInfo add(long size) {
-			this.n++;
-			this.size += size;
-			return this;
-		}
-		public FileInfo add(FileInfo info) {
-			this.n += info.n;
-			this.size += info.size;
-			return this;
-		}
+		xml.writeEndElement();
+		if (dcmOnly) classifier.prefetch(subdirs.toArray(new File[subdirs.size()]));
 	}
 	
-	private void setAttributes(Element el, DicomObject dob) {
-		el.setAttribute("PatientName", dob.getPatientName());
-		el.setAttribute("PatientID", dob.getPatientID());
-		el.setAttribute("StudyDate", dob.getStudyDate());	
-		el.setAttribute("Modality", dob.getModality());
-		el.setAttribute("Series", dob.getSeriesNumber());
+	//Start the element for a directory in the file browser.
+	private void startDirectory(XMLStreamWriter xml, File dir) throws Exception {
+		File parent = dir.getParentFile();
+		String name = dir.getName();
+		if (name.equals("")) name = dir.getAbsolutePath();
+		xml.writeStartElement("dir");
+		xml.writeAttribute("name", name);
+		xml.writeAttribute("parent", ((parent == null) ? "" : parent.getAbsolutePath()));
 	}
 }
\ No newline at end of file
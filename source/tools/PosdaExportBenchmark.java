@@ -0,0 +1,321 @@
+package org.rsna.ctp.stdstages;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.rsna.ctp.pipeline.Status;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A benchmark for PosdaExportService.
+ * <p>
+ * The benchmark starts a PosdaStubServer, writes a set of synthetic DICOM
+ * files, and exports them with a real PosdaExportService from a number of
+ * threads, reporting the throughput and the latency percentiles of the
+ * export calls. With the -micro option, it instead times the digest
+ * computation and the hex conversion.
+ * <p>
+ * Usage: java -cp TCIAPluginTools.jar:TCIAPlugin.jar:... org.rsna.ctp.stdstages.PosdaExportBenchmark [options]
+ * <ul>
+ * <li>-files=N: the number of files to export (default 1000)
+ * <li>-size=KB: the approximate size of each file (default 512)
+ * <li>-patients=N: the number of distinct PatientIDs (default 10)
+ * <li>-threads=N: the number of exporting threads (default 4)
+ * <li>-latency=ms: the latency added by the stub server (default 0)
+ * <li>-errorRate=x: the fraction of requests the stub server fails (default 0)
+ * <li>-attr=name:value: an attribute of the export service (may be repeated)
+ * <li>-micro: run the digest and hex conversion timings
+ * </ul>
+ */
+public class PosdaExportBenchmark {
+
+	static final String sopClassUID = "1.2.840.10008.5.1.4.1.1.2";
+	static final String transferSyntaxUID = "1.2.840.10008.1.2.1";
+	static final String uidRoot = "1.2.826.0.1.3680043.2.1125.9";
+
+	/**
+	 * Run the benchmark.
+	 * @param args the options.
+	 * @throws Exception if the benchmark cannot be run.
+	 */
+	public static void main(String[] args) throws Exception {
+		Hashtable<String,String> options = new Hashtable<String,String>();
+		List<String> attrs = new LinkedList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("-attr=")) attrs.add(arg.substring(6));
+			else {
+				int k = arg.indexOf("=");
+				if (k > 0) options.put(arg.substring(1, k), arg.substring(k+1));
+				else options.put(arg.substring(1), "");
+			}
+		}
+		if (options.containsKey("micro")) runMicrobenchmarks();
+		else runExportBenchmark(options, attrs);
+	}
+
+	static void runExportBenchmark(Hashtable<String,String> options, List<String> attrs) throws Exception {
+		int fileCount = getInt(options, "files", 1000);
+		int size = getInt(options, "size", 512) * 1024;
+		int patients = Math.max(1, getInt(options, "patients", 10));
+		int threadCount = Math.max(1, getInt(options, "threads", 4));
+
+		PosdaStubServer stub = new PosdaStubServer(0);
+		stub.setLatency(getInt(options, "latency", 0));
+		if (options.containsKey("errorRate")) stub.setErrorRate(Double.parseDouble(options.get("errorRate")));
+		stub.start();
+
+		File dir = File.createTempFile("PosdaBenchmark-", "");
+		dir.delete();
+		File dataDir = new File(dir, "data");
+		dataDir.mkdirs();
+		try {
+			System.out.println("Writing "+fileCount+" files of "+(size/1024)+"KB to "+dataDir);
+			final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>();
+			long totalBytes = 0;
+			for (int i=0; i<fileCount; i++) {
+				File file = new File(dataDir, i + ".dcm");
+				writeDicomFile(file, "BENCH-" + (i % patients), i / 100, i, size);
+				files.add(file);
+				totalBytes += file.length();
+			}
+
+			Document doc = XmlUtil.getDocument();
+			Element element = doc.createElement("ExportService");
+			element.setAttribute("name", "PosdaExportBenchmark");
+			element.setAttribute("root", new File(dir, "root").getAbsolutePath());
+			element.setAttribute("url", "http://localhost:"+stub.getPort()+"/papi");
+			element.setAttribute("workers", Integer.toString(threadCount));
+			for (String attr : attrs) {
+				int k = attr.indexOf(":");
+				if (k > 0) element.setAttribute(attr.substring(0, k), attr.substring(k+1));
+			}
+			doc.appendChild(element);
+			final PosdaExportService service = new PosdaExportService(element);
+
+			//Export the files, recording the time of each call
+			final long[] latencies = new long[fileCount];
+			final AtomicInteger next = new AtomicInteger(0);
+			final AtomicInteger ok = new AtomicInteger(0);
+			final AtomicInteger retry = new AtomicInteger(0);
+			final AtomicInteger fail = new AtomicInteger(0);
+			Thread[] threads = new Thread[threadCount];
+			for (int i=0; i<threadCount; i++) {
+				threads[i] = new Thread() {
+					public void run() {
+						File file;
+						while ((file = files.poll()) != null) {
+							long start = System.nanoTime();
+							Status status = service.export(file);
+							latencies[next.getAndIncrement()] = System.nanoTime() - start;
+							if (status.equals(Status.OK)) ok.incrementAndGet();
+							else if (status.equals(Status.RETRY)) retry.incrementAndGet();
+							else fail.incrementAndGet();
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for (Thread thread : threads) thread.start();
+			for (Thread thread : threads) thread.join();
+			double seconds = (System.nanoTime() - start) / 1.0e9;
+
+			Arrays.sort(latencies);
+			System.out.println("Threads:      "+threadCount);
+			System.out.println("Files:        "+fileCount+" ("+ok+" OK, "+retry+" RETRY, "+fail+" FAIL)");
+			System.out.println("Elapsed:      "+String.format("%.2f s", seconds));
+			System.out.println("Throughput:   "+String.format("%.1f files/s, %.2f MB/s",
+													fileCount / seconds, totalBytes / seconds / (1024 * 1024)));
+			System.out.println("Latency:      "+String.format("p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+													percentile(latencies, 50), percentile(latencies, 90),
+													percentile(latencies, 99), percentile(latencies, 100)));
+			System.out.println("Server:       "+stub.getFilesReceived()+" received, "
+													+stub.getFilesRejected()+" rejected, "
+													+stub.getErrorsInjected()+" errors injected");
+		}
+		finally {
+			stub.stop();
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	static void runMicrobenchmarks() throws Exception {
+		int[] sizes = { 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+		for (int size : sizes) {
+			File file = File.createTempFile("PosdaDigest-", ".bin");
+			try {
+				writeBytes(file, size);
+				int iterations = Math.max(10, (256 * 1024 * 1024) / size);
+				for (int i=0; i<iterations/4; i++) PosdaExportService.getDigest(file);
+				long start = System.nanoTime();
+				for (int i=0; i<iterations; i++) PosdaExportService.getDigest(file);
+				double seconds = (System.nanoTime() - start) / 1.0e9;
+				System.out.println(String.format("getDigest %6dKB: %10.1f us/op %8.1f MB/s",
+									size / 1024, seconds * 1.0e6 / iterations,
+									(double)size * iterations / seconds / (1024 * 1024)));
+			}
+			finally { file.delete(); }
+		}
+
+		byte[] bytes = new byte[16];
+		for (int i=0; i<bytes.length; i++) bytes[i] = (byte)(i * 17);
+		int iterations = 10000000;
+		int check = 0;
+		for (int i=0; i<iterations/10; i++) check += PosdaExportService.bytesToHex(bytes).length();
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; i++) {
+			bytes[0] = (byte)i;
+			check += PosdaExportService.bytesToHex(bytes).length();
+		}
+		double ns = (double)(System.nanoTime() - start) / iterations;
+		System.out.println(String.format("bytesToHex 16 bytes: %6.1f ns/op (%d)", ns, check));
+	}
+
+	//Write a DICOM Part 10 file in explicit VR little endian with a
+	//single frame of 16-bit pixels, sized to approximately the given length.
+	static void writeDicomFile(File file, String patientID, int series, int instance, int size) throws IOException {
+		String studyUID = uidRoot + ".1." + patientID.hashCode() % 100000;
+		String seriesUID = studyUID + "." + series;
+		String sopInstanceUID = seriesUID + "." + instance;
+		int side = Math.max(1, (int)Math.sqrt(size / 2));
+
+		DicomWriter meta = new DicomWriter();
+		meta.element(0x0002, 0x0001, "OB", new byte[] { 0, 1 });
+		meta.uid(0x0002, 0x0002, sopClassUID);
+		meta.uid(0x0002, 0x0003, sopInstanceUID);
+		meta.uid(0x0002, 0x0010, transferSyntaxUID);
+
+		DicomWriter data = new DicomWriter();
+		data.uid(0x0008, 0x0016, sopClassUID);
+		data.uid(0x0008, 0x0018, sopInstanceUID);
+		data.text(0x0008, 0x0060, "CS", "CT");
+		data.text(0x0010, 0x0010, "PN", "BENCHMARK^"+patientID);
+		data.text(0x0010, 0x0020, "LO", patientID);
+		data.uid(0x0020, 0x000D, studyUID);
+		data.uid(0x0020, 0x000E, seriesUID);
+		data.us(0x0028, 0x0002, 1);
+		data.text(0x0028, 0x0004, "CS", "MONOCHROME2");
+		data.us(0x0028, 0x0010, side);
+		data.us(0x0028, 0x0011, side);
+		data.us(0x0028, 0x0100, 16);
+		data.us(0x0028, 0x0101, 12);
+		data.us(0x0028, 0x0102, 11);
+		data.us(0x0028, 0x0103, 0);
+
+		//Smoothly varying pixels with some noise, roughly like a CT slice
+		byte[] pixels = new byte[side * side * 2];
+		int k = 0;
+		for (int y=0; y<side; y++) {
+			for (int x=0; x<side; x++) {
+				int v = ((x * y + instance) & 0x3ff) + ((x ^ y) & 0x0f);
+				pixels[k++] = (byte)v;
+				pixels[k++] = (byte)(v >> 8);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.write(new byte[128]);
+			out.writeBytes("DICM");
+			DicomWriter group = new DicomWriter();
+			group.ul(0x0002, 0x0000, meta.size());
+			group.writeTo(out);
+			meta.writeTo(out);
+			data.writeTo(out);
+			DicomWriter pixelHeader = new DicomWriter();
+			pixelHeader.header(0x7FE0, 0x0010, "OW", pixels.length);
+			pixelHeader.writeTo(out);
+			out.write(pixels);
+		}
+		finally { out.close(); }
+	}
+
+	static void writeBytes(File file, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		for (int i=0; i<size; i++) bytes[i] = (byte)(i * 31 + (i >> 8));
+		FileOutputStream fos = new FileOutputStream(file);
+		try { fos.write(bytes); }
+		finally { fos.close(); }
+	}
+
+	static double percentile(long[] sorted, int p) {
+		if (sorted.length == 0) return 0;
+		int k = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, k))] / 1.0e6;
+	}
+
+	static int getInt(Hashtable<String,String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		if (value == null) return defaultValue;
+		try { return Integer.parseInt(value.trim()); }
+		catch (Exception ex) { return defaultValue; }
+	}
+
+	//Encoder for explicit VR little endian elements.
+	static class DicomWriter {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		void uid(int group, int elem, String uid) {
+			byte[] b = uid.getBytes();
+			if ((b.length & 1) != 0) b = Arrays.copyOf(b, b.length + 1);
+			element(group, elem, "UI", b);
+		}
+
+		void text(int group, int elem, String vr, String text) {
+			if ((text.length() & 1) != 0) text += " ";
+			element(group, elem, vr, text.getBytes());
+		}
+
+		void us(int group, int elem, int value) {
+			element(group, elem, "US", new byte[] { (byte)value, (byte)(value >> 8) });
+		}
+
+		void ul(int group, int elem, int value) {
+			element(group, elem, "UL", new byte[] {
+				(byte)value, (byte)(value >> 8), (byte)(value >> 16), (byte)(value >> 24) });
+		}
+
+		void element(int group, int elem, String vr, byte[] value) {
+			header(group, elem, vr, value.length);
+			bytes.write(value, 0, value.length);
+		}
+
+		//Write a tag, VR and length; OB, OW, SQ, UN and UT have a 32-bit length.
+		void header(int group, int elem, String vr, int length) {
+			short16(group);
+			short16(elem);
+			bytes.write(vr.charAt(0));
+			bytes.write(vr.charAt(1));
+			if (vr.equals("OB") || vr.equals("OW") || vr.equals("SQ") || vr.equals("UN") || vr.equals("UT")) {
+				short16(0);
+				short16(length);
+				short16(length >> 16);
+			}
+			else short16(length);
+		}
+
+		void short16(int value) {
+			bytes.write(value & 0xff);
+			bytes.write((value >> 8) & 0xff);
+		}
+
+		int size() {
+			return bytes.size();
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			bytes.writeTo(out);
+		}
+	}
+}
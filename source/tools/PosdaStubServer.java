@@ -0,0 +1,401 @@
+package org.rsna.ctp.stdstages;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A minimal stand-in for the Posda import API, for testing PosdaExportService
+ * without a live Posda server. It implements:
+ * <ul>
+ * <li>PUT .../v1/import/event?source=... returning a new import_event_id
+ * <li>PUT .../v1/import/file?import_event_id=...&amp;digest=... verifying the digest of the body,
+ * which may be sent with a gzip or deflate Content-Encoding
+ * <li>PUT .../v1/import/batch?import_event_id=... accepting a zip archive whose
+ * manifest.txt entry lists the digest of each of the other entries
+ * <li>PUT .../v1/import/upload?import_event_id=...&amp;digest=...&amp;size=... opening a
+ * chunked upload, or returning the upload_id and offset of an existing upload of the same object
+ * <li>PUT .../v1/import/chunk?upload_id=...&amp;offset=...&amp;digest=... receiving one chunk,
+ * answering 409 if the offset is not the one expected and 400 if the chunk digest does not match
+ * </ul>
+ * Any path prefix is accepted, so the export service URL may include the
+ * first path element of a real server. Objects are counted but not stored.
+ * The server can add latency to each request, answer a fraction of requests
+ * with 503 errors, and skip digest verification, to simulate a slow or
+ * overloaded server.
+ * <p>
+ * Usage: java -cp TCIAPluginTools.jar:TCIAPlugin.jar:... org.rsna.ctp.stdstages.PosdaStubServer [port [latency [errorRate [noverify]]]]
+ */
+public class PosdaStubServer {
+
+	final HttpServer server;
+	final AtomicInteger nextEventID = new AtomicInteger(1);
+	final AtomicInteger nextUploadID = new AtomicInteger(1);
+	final Hashtable<String,Upload> uploads = new Hashtable<String,Upload>();
+	final Hashtable<String,Upload> uploadsByObject = new Hashtable<String,Upload>();
+	final AtomicLong filesReceived = new AtomicLong(0);
+	final AtomicLong filesRejected = new AtomicLong(0);
+	final AtomicLong bytesReceived = new AtomicLong(0);
+	final AtomicLong errorsInjected = new AtomicLong(0);
+	final Random random = new Random();
+	volatile long latency = 0;
+	volatile double errorRate = 0.0;
+	volatile boolean verifyDigests = true;
+
+	/**
+	 * Create a stub server. The server is not started.
+	 * @param port the port on which to listen, or 0 for any free port.
+	 * @throws Exception if the server cannot be created.
+	 */
+	public PosdaStubServer(int port) throws Exception {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new ImportHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * Set the time the server waits before answering each request.
+	 * @param latency the delay in ms.
+	 */
+	public void setLatency(long latency) {
+		this.latency = Math.max(0, latency);
+	}
+
+	/**
+	 * Set the fraction of requests that are answered with a 503 response.
+	 * @param errorRate the fraction, from 0.0 to 1.0.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = Math.max(0.0, Math.min(1.0, errorRate));
+	}
+
+	/**
+	 * Set whether the server checks the digest of each object.
+	 * If not, the body is still read and counted.
+	 * @param verifyDigests true to reject objects whose digest does not match.
+	 */
+	public void setVerifyDigests(boolean verifyDigests) {
+		this.verifyDigests = verifyDigests;
+	}
+
+	/**
+	 * Start the server.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Get the port on which the server is listening.
+	 * @return the port.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Get the number of files accepted by the server.
+	 * @return the number of files.
+	 */
+	public long getFilesReceived() {
+		return filesReceived.get();
+	}
+
+	/**
+	 * Get the number of files rejected because of a digest mismatch.
+	 * @return the number of files.
+	 */
+	public long getFilesRejected() {
+		return filesRejected.get();
+	}
+
+	/**
+	 * Get the number of object bytes accepted by the server.
+	 * @return the number of bytes.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Get the number of requests answered with an injected error.
+	 * @return the number of requests.
+	 */
+	public long getErrorsInjected() {
+		return errorsInjected.get();
+	}
+
+	class ImportHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) {
+			try {
+				String path = exchange.getRequestURI().getPath();
+				Hashtable<String,String> params = getParameters(exchange.getRequestURI().getRawQuery());
+				if (latency > 0) Thread.sleep(latency);
+				if ((errorRate > 0.0) && (random.nextDouble() < errorRate)) {
+					errorsInjected.incrementAndGet();
+					drain(exchange.getRequestBody());
+					send(exchange, 503, "{\"status\":\"error\",\"message\":\"injected error\"}");
+				}
+				else if (path.endsWith("/v1/import/event")) {
+					int id = nextEventID.getAndIncrement();
+					drain(exchange.getRequestBody());
+					send(exchange, 200, "{\"status\":\"success\",\"import_event_id\":"+id+"}");
+				}
+				else if (path.endsWith("/v1/import/file")) {
+					handleFile(exchange, params);
+				}
+				else if (path.endsWith("/v1/import/batch")) {
+					handleBatch(exchange, params);
+				}
+				else if (path.endsWith("/v1/import/upload")) {
+					handleUpload(exchange, params);
+				}
+				else if (path.endsWith("/v1/import/chunk")) {
+					handleChunk(exchange, params);
+				}
+				else {
+					drain(exchange.getRequestBody());
+					send(exchange, 404, "{\"status\":\"error\",\"message\":\"not found\"}");
+				}
+			}
+			catch (Exception ex) {
+				try { send(exchange, 500, "{\"status\":\"error\",\"message\":\""+ex.getMessage()+"\"}"); }
+				catch (Exception ignore) { }
+			}
+			finally { exchange.close(); }
+		}
+	}
+
+	void handleFile(HttpExchange exchange, Hashtable<String,String> params) throws Exception {
+		String expected = params.get("digest");
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		long length = digest(getRequestBody(exchange), md);
+		String digest = PosdaDigestCache.bytesToHex(md.digest());
+		if (verifyDigests && (expected != null) && !expected.equals(digest)) {
+			filesRejected.incrementAndGet();
+			send(exchange, 422, "{\"status\":\"error\",\"message\":\"digest mismatch\"}");
+			return;
+		}
+		filesReceived.incrementAndGet();
+		bytesReceived.addAndGet(length);
+		send(exchange, 200, "{\"status\":\"success\"}");
+	}
+
+	void handleBatch(HttpExchange exchange, Hashtable<String,String> params) throws Exception {
+		Hashtable<String,String> manifest = new Hashtable<String,String>();
+		StringBuffer sb = new StringBuffer("{\"status\":\"success\",\"files\":[");
+		boolean first = true;
+		ZipInputStream zis = new ZipInputStream(exchange.getRequestBody());
+		ZipEntry entry;
+		while ((entry = zis.getNextEntry()) != null) {
+			if (entry.getName().equals("manifest.txt")) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(zis, "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] s = line.trim().split("\\s+");
+					if (s.length == 2) manifest.put(s[0], s[1]);
+				}
+				continue;
+			}
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			long length = digest(zis, md);
+			String digest = PosdaDigestCache.bytesToHex(md.digest());
+			String expected = manifest.get(entry.getName());
+			String status = "ok";
+			if (verifyDigests && ((expected == null) || !expected.equals(digest))) {
+				filesRejected.incrementAndGet();
+				status = "fail";
+			}
+			else {
+				filesReceived.incrementAndGet();
+				bytesReceived.addAndGet(length);
+			}
+			if (!first) sb.append(",");
+			sb.append("{\"name\":\""+entry.getName()+"\",\"status\":\""+status+"\"}");
+			first = false;
+		}
+		sb.append("]}");
+		send(exchange, 200, sb.toString());
+	}
+
+	//Get the request body, decompressing it if it has a Content-Encoding.
+	static InputStream getRequestBody(HttpExchange exchange) throws Exception {
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		InputStream in = exchange.getRequestBody();
+		if (encoding == null) return in;
+		if (encoding.equalsIgnoreCase("gzip")) return new GZIPInputStream(in);
+		if (encoding.equalsIgnoreCase("deflate")) return new InflaterInputStream(in);
+		return in;
+	}
+
+	//Open a chunked upload, or return the state of an
+	//existing upload of the same object.
+	void handleUpload(HttpExchange exchange, Hashtable<String,String> params) throws Exception {
+		drain(exchange.getRequestBody());
+		String digest = params.get("digest");
+		long size = Long.parseLong(params.get("size"));
+		String key = digest + ":" + size;
+		Upload upload;
+		synchronized (uploads) {
+			upload = uploadsByObject.get(key);
+			if (upload == null) {
+				upload = new Upload("u" + nextUploadID.getAndIncrement(), digest, size);
+				uploads.put(upload.id, upload);
+				uploadsByObject.put(key, upload);
+			}
+		}
+		synchronized (upload) {
+			send(exchange, 200, upload.getState());
+		}
+	}
+
+	//Receive one chunk of an upload. The response always contains
+	//the offset of the data the server holds.
+	void handleChunk(HttpExchange exchange, Hashtable<String,String> params) throws Exception {
+		Upload upload = uploads.get(params.get("upload_id"));
+		if (upload == null) {
+			drain(exchange.getRequestBody());
+			send(exchange, 404, "{\"status\":\"error\",\"message\":\"unknown upload\"}");
+			return;
+		}
+		synchronized (upload) {
+			long offset = Long.parseLong(params.get("offset"));
+			if (upload.complete || (offset != upload.offset)) {
+				drain(exchange.getRequestBody());
+				send(exchange, upload.complete ? 200 : 409, upload.getState());
+				return;
+			}
+			MessageDigest chunkMD = MessageDigest.getInstance("MD5");
+			MessageDigest objectMD = (MessageDigest)upload.md.clone();
+			byte[] buffer = new byte[PosdaDigestCache.bufferSize];
+			InputStream in = exchange.getRequestBody();
+			long length = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				chunkMD.update(buffer, 0, n);
+				objectMD.update(buffer, 0, n);
+				length += n;
+			}
+			String expected = params.get("digest");
+			String digest = PosdaDigestCache.bytesToHex(chunkMD.digest());
+			if ((verifyDigests && (expected != null) && !expected.equals(digest)) || (offset + length > upload.size)) {
+				send(exchange, 400, upload.getState());
+				return;
+			}
+			upload.md = objectMD;
+			upload.offset += length;
+			if (upload.offset == upload.size) {
+				String objectDigest = PosdaDigestCache.bytesToHex(objectMD.digest());
+				if (verifyDigests && !objectDigest.equals(upload.digest)) {
+					filesRejected.incrementAndGet();
+					uploads.remove(upload.id);
+					uploadsByObject.remove(upload.digest + ":" + upload.size);
+					send(exchange, 422, "{\"status\":\"error\",\"message\":\"digest mismatch\"}");
+					return;
+				}
+				upload.complete = true;
+				filesReceived.incrementAndGet();
+				bytesReceived.addAndGet(upload.size);
+			}
+			send(exchange, 200, upload.getState());
+		}
+	}
+
+	class Upload {
+		final String id;
+		final String digest;
+		final long size;
+		MessageDigest md;
+		long offset = 0;
+		boolean complete = false;
+		Upload(String id, String digest, long size) throws Exception {
+			this.id = id;
+			this.digest = digest;
+			this.size = size;
+			this.md = MessageDigest.getInstance("MD5");
+		}
+		String getState() {
+			return "{\"status\":\"" + (complete ? "success" : "partial") + "\","
+					+ "\"upload_id\":\"" + id + "\",\"offset\":" + offset + "}";
+		}
+	}
+
+	static Hashtable<String,String> getParameters(String query) throws Exception {
+		Hashtable<String,String> params = new Hashtable<String,String>();
+		if (query == null) return params;
+		for (String param : query.split("&")) {
+			int k = param.indexOf("=");
+			if (k > 0) {
+				params.put(
+					URLDecoder.decode(param.substring(0, k), "UTF-8"),
+					URLDecoder.decode(param.substring(k+1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	static long digest(InputStream in, MessageDigest md) throws Exception {
+		byte[] buffer = new byte[PosdaDigestCache.bufferSize];
+		long length = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			md.update(buffer, 0, n);
+			length += n;
+		}
+		return length;
+	}
+
+	static void drain(InputStream in) throws Exception {
+		byte[] buffer = new byte[1024];
+		while (in.read(buffer) != -1) ; //empty loop
+	}
+
+	static void send(HttpExchange exchange, int code, String text) throws Exception {
+		byte[] bytes = text.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	/**
+	 * Run a stub server until the process is killed.
+	 * @param args the port (optional; default 8080), the latency in ms
+	 * (optional; default 0), the error rate (optional; default 0.0), and
+	 * "noverify" to accept objects without checking their digests.
+	 * @throws Exception if the server cannot be started.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		PosdaStubServer stub = new PosdaStubServer(port);
+		if (args.length > 1) stub.setLatency(Long.parseLong(args[1]));
+		if (args.length > 2) stub.setErrorRate(Double.parseDouble(args[2]));
+		if (args.length > 3) stub.setVerifyDigests(!args[3].equals("noverify"));
+		stub.start();
+		System.out.println("Posda stub server listening on port "+stub.getPort());
+	}
+}